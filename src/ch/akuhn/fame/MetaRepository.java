@@ -102,15 +102,16 @@ public class MetaRepository extends Repository {
     }
 
     @Override
-    public void add(Object element) {
+    protected boolean register(Object element) {
         assert !immutable;
         assert element instanceof Element : element.getClass();
         if (element instanceof MetaDescription) {
             MetaDescription meta = (MetaDescription) element;
-            if (meta.isPrimitive() || meta.isRoot()) return;
+            if (meta.isPrimitive() || meta.isRoot()) return false;
         }
-        super.add(element);
+        boolean added = super.register(element);
         bindings.put(((Element) element).getFullname(), (Element) element);
+        return added;
     }
 
     public void addClassDescription(Class<? extends Object> cls, MetaDescription desc) {
@@ -168,14 +169,21 @@ public class MetaRepository extends Repository {
      * @return a causally connected Fame-class.
      */
     public MetaDescription getDescription(Class jclass) {
+        MetaDescription $ = findDescription(jclass);
+        if ($ != null) return $;
+        throw new AssertionError("Class not metadescribed: " + jclass);
+        //throw new ClassNotMetadescribedException(jclass);
+    }
+
+    /** Answers the description of the given class, or null if there is none. */
+    MetaDescription findDescription(Class<?> jclass) {
         MetaDescription $ = lookupPrimitive(jclass);
         if ($ != null) return $;
         for (Class curr = jclass; curr != null; curr = curr.getSuperclass()) {
             $ = lookupClass(curr);
             if ($ != null) return $;
         }
-        throw new AssertionError("Class not metadescribed: " + jclass);
-        //throw new ClassNotMetadescribedException(jclass);
+        return null;
     }
 
     public PackageDescription initializePackageNamed(String name) {
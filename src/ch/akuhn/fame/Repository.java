@@ -18,11 +18,26 @@
 
 package ch.akuhn.fame;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPOutputStream;
 
 import ch.akuhn.fame.MetaRepository.ClassNotMetadescribedException;
 import ch.akuhn.fame.fm3.MetaDescription;
@@ -31,13 +46,19 @@ import ch.akuhn.fame.internal.MSEPrinter;
 import ch.akuhn.fame.internal.RepositoryVisitor;
 import ch.akuhn.fame.parser.Importer;
 import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.LazyLoader;
+import ch.akuhn.fame.parser.ParallelImporter;
 import ch.akuhn.fame.parser.ParseClient;
-import ch.akuhn.util.Files;
-import ch.akuhn.util.query.Count;
-import ch.akuhn.util.query.Select;
 
 /**
  * A group of elements that conform to the same meta-model.
+ * <p>
+ * Elements are indexed by their concrete class. Queries by type, ie
+ * {@link #all(Class)}, {@link #extent(Class)} and {@link #count(Class)} and
+ * their counterparts for meta-descriptions, consider the elements of
+ * conforming classes only. Hence extents and counts take time in the number
+ * of conforming classes, and <code>all</code> in the number of elements it
+ * answers, rather than in the number of all elements.
  * 
  * @author Adrian Kuhn, 2007-2008
  * 
@@ -72,10 +93,163 @@ public class Repository {
         return ownerName + "." + name;
     }
 
+    /** The elements of one concrete class, in order of registration. */
+    private class Bucket {
+
+        public final Class<?> type;
+        public final List<Object> elements = new ArrayList<Object>();
+        private MetaDescription description;
+        private boolean undescribed;
+
+        public Bucket(Class<?> type) {
+            this.type = type;
+        }
+
+        /** Answers the description of the class, or null if there is none. */
+        public MetaDescription getDescription() {
+            if (description == null && !undescribed) {
+                description = metamodel.findDescription(type);
+                undescribed = description == null;
+            }
+            return description;
+        }
+
+    }
+
+    /**
+     * Live view of the elements that conform to a Java class or to a
+     * meta-description. Views are created once per type, and are updated as
+     * classes are added to the repository.
+     */
+    private class Extent<T> extends AbstractCollection<T> {
+
+        private final Object type; // class or meta-description
+        private final List<Bucket> buckets = new ArrayList<Bucket>();
+
+        public Extent(Object type) {
+            this.type = type;
+            for (Bucket each : byClass.values()) {
+                if (this.accepts(each))
+                    buckets.add(each);
+            }
+        }
+
+        public boolean accepts(Bucket bucket) {
+            if (type instanceof Class)
+                return ((Class<?>) type).isAssignableFrom(bucket.type);
+            MetaDescription description = bucket.getDescription();
+            return description != null && description.conformsTo((MetaDescription) type);
+        }
+
+        @Override
+        public boolean contains(Object element) {
+            Bucket bucket = element == null ? null : byClass.get(element.getClass());
+            return bucket != null && this.accepts(bucket) && elements.contains(element);
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int bucket = 0;
+                private int index = 0;
+
+                public boolean hasNext() {
+                    for (; bucket < buckets.size(); bucket++, index = 0) {
+                        if (index < buckets.get(bucket).elements.size())
+                            return true;
+                    }
+                    return false;
+                }
+
+                public T next() {
+                    if (!this.hasNext())
+                        throw new NoSuchElementException();
+                    return (T) buckets.get(bucket).elements.get(index++);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (Bucket each : buckets)
+                size += each.elements.size();
+            return size;
+        }
+
+    }
+
+    /**
+     * The elements of a repository, as answered by {@link #getElements()}.
+     * Elements added or removed through this collection are added to or
+     * removed from the index as well.
+     */
+    private class Elements extends AbstractCollection<Object> {
+
+        @Override
+        public boolean add(Object element) {
+            return Repository.this.register(element);
+        }
+
+        @Override
+        public boolean contains(Object element) {
+            return elements.contains(element);
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            final Iterator<Object> iterator = elements.iterator();
+            return new Iterator<Object>() {
+                private Object last;
+
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                public Object next() {
+                    return last = iterator.next();
+                }
+
+                public void remove() {
+                    iterator.remove();
+                    Repository.this.unregister(last);
+                }
+            };
+        }
+
+        @Override
+        public boolean remove(Object element) {
+            if (!elements.remove(element))
+                return false;
+            Repository.this.unregister(element);
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return elements.size();
+        }
+
+    }
+
     private Collection elements;
 
+    private Collection<Object> view; // of elements, keeps the index in sync
+
+    private Map<Class<?>, Bucket> byClass;
+
+    private Bucket lastBucket; // of the most recently registered element
+
+    private Map<Object, Extent<?>> extents; // by class or meta-description
+
     private MetaRepository metamodel;
 
+    private List<LazyLoader> loaders; // open loaders of lazy imports
+
     /**
      * Creates an empty tower of models. The tower has three layers: both this
      * and the meta-layer are initially empty, whereas the topmost layer is
@@ -98,9 +272,20 @@ public class Repository {
         // allow null in order to boot-strap self-described meta-models
         this.metamodel = metamodel == null ? (MetaRepository) this : metamodel;
         this.elements = new HashSet();
+        this.view = new Elements();
+        this.byClass = new HashMap<Class<?>, Bucket>();
+        this.extents = new HashMap<Object, Extent<?>>();
+        this.loaders = new ArrayList<LazyLoader>();
     }
 
+    /**
+     * Visits all elements, after loading the elements of lazy imports.
+     * 
+     */
     public void accept(ParseClient visitor) {
+        for (LazyLoader each : loaders)
+            each.loadAll();
+        loaders.clear();
         Runnable runner = new RepositoryVisitor(this, visitor);
         runner.run();
     }
@@ -115,7 +300,7 @@ public class Repository {
 
     public void add(Object element) {
         assert element != null;
-        if (elements.add(element)) {
+        if (this.register(element)) {
             MetaDescription meta = metamodel.getDescription(element.getClass());
             assert meta != null : element.getClass();
             for (PropertyDescription property : meta.allAttributes()) {
@@ -152,16 +337,93 @@ public class Repository {
         }
     }
 
+    /**
+     * Adds all given elements, without visiting their properties. Use this
+     * only if all elements reachable from the given elements are either given
+     * or already in this repository, as is the case for the elements read by
+     * an {@link Importer}.
+     * 
+     */
+    public void registerAll(Collection<?> all) {
+        for (Object each : all) {
+            assert each != null;
+            this.register(each);
+        }
+    }
+
+    /**
+     * Adds the given element, without visiting its properties.
+     * 
+     * @return <code>true</code> if the element has been added.
+     */
+    protected boolean register(Object element) {
+        if (!elements.add(element))
+            return false;
+        Bucket bucket = lastBucket;
+        if (bucket == null || bucket.type != element.getClass()) {
+            bucket = byClass.get(element.getClass());
+            if (bucket == null)
+                bucket = this.newBucket(element.getClass());
+            lastBucket = bucket;
+        }
+        bucket.elements.add(element);
+        return true;
+    }
+
+    private void unregister(Object element) {
+        byClass.get(element.getClass()).elements.remove(element);
+    }
+
+    private Bucket newBucket(Class<?> type) {
+        Bucket bucket = new Bucket(type);
+        byClass.put(type, bucket);
+        for (Extent<?> each : extents.values()) {
+            if (each.accepts(bucket))
+                each.buckets.add(bucket);
+        }
+        return bucket;
+    }
+
     /**
      * Collect all elements with the specified class.
      * 
      */
     public <T> Collection<T> all(Class<T> type) {
-        Select<T> query = Select.from(elements);
-        for (Select<T> each: query) {
-            each.yield = type.isAssignableFrom(each.element.getClass());
-        }
-        return query.result();
+        return new ArrayList<T>(this.extent(type));
+    }
+
+    /**
+     * Collect all elements that conform to the given meta-description.
+     * 
+     */
+    public Collection<Object> all(MetaDescription type) {
+        return new ArrayList<Object>(this.extent(type));
+    }
+
+    /**
+     * Answers all elements with the specified class, as a live and
+     * unmodifiable view. Views are cached, asking twice for the same class
+     * answers the same view.
+     * 
+     */
+    public <T> Collection<T> extent(Class<T> type) {
+        return (Collection<T>) this.extentOf(type);
+    }
+
+    /**
+     * Answers all elements that conform to the given meta-description, as a
+     * live and unmodifiable view.
+     * 
+     */
+    public Collection<Object> extent(MetaDescription type) {
+        return (Collection<Object>) this.extentOf(type);
+    }
+
+    private Extent<?> extentOf(Object type) {
+        Extent<?> extent = extents.get(type);
+        if (extent == null)
+            extents.put(type, extent = new Extent<Object>(type));
+        return extent;
     }
 
     public static class ObjectNotDescribed extends AssertionError {
@@ -190,17 +452,77 @@ public class Repository {
         return stream.toString();
     }
     
+    /**
+     * Imports the elements of the given input into this repository, in one
+     * pass.
+     * 
+     */
     public void importMSE(InputSource input) {
-        Importer importer = new Importer(this.getMetamodel());
+        Importer importer = new Importer(this.getMetamodel(), this);
         importer.readFrom(input);
-        this.addAll(importer.getResult().getElements());
     }
 
+    /**
+     * Imports the given file, which may be compressed with gzip, or with
+     * deflate if its name ends with <tt>.z</tt> or <tt>.zz</tt>.
+     * 
+     */
     public void importMSEFile(String name) {
-        importMSE(InputSource.fromFilename(name));
+        InputSource input = InputSource.fromFilename(name);
+        try {
+            importMSE(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Imports the given file on multiple threads, see {@link ParallelImporter}.
+     * Setters are called on the threads of the given executor, which should
+     * not have more than the given number of threads, and attributes without
+     * opposite are not written in document order.
+     * 
+     */
+    public void importMSEFileInParallel(String name, ExecutorService executor, int parallelism) {
+        ParallelImporter importer = new ParallelImporter(this.getMetamodel(), this);
+        importer.setExecutor(executor, parallelism);
+        InputSource input = InputSource.fromFilename(name);
+        try {
+            importer.readFrom(input);
+        } finally {
+            input.close();
+        }
+    }
+
+
+    /**
+     * Imports the given file lazily, reading the attributes of each element
+     * only when they are first accessed, see {@link LazyLoader}.
+     * 
+     */
+    public LazyLoader importMSEFileLazily(String name) {
+        LazyLoader loader = LazyLoader.open(this, new File(name));
+        if (loader.isOpen())
+            loaders.add(loader);
+        return loader;
+    }
+
+    /**
+     * Loads the attributes of the given element, if it has been imported
+     * lazily and is not loaded yet.
+     * 
+     */
+    public void load(Object element) {
+        if (loaders.isEmpty())
+            return;
+        for (Iterator<LazyLoader> it = loaders.iterator(); it.hasNext();) {
+            LazyLoader each = it.next();
+            each.load(element);
+            if (!each.isOpen())
+                it.remove();
+        }
     }
 
-    
     public void importMSE(CharSequence content) {
         importMSE(InputSource.fromString(content));
     }
@@ -209,8 +531,25 @@ public class Repository {
         importMSE(InputSource.fromInputStream(stream));
     }
     
+    /**
+     * Exports all elements to the given file, compressed with gzip if the name
+     * of the file ends with <tt>.gz</tt>.
+     * 
+     */
     public void exportMSEFile(String filename) {
-        this.accept(new MSEPrinter(Files.openWrite(filename)));
+        this.accept(new MSEPrinter(openWrite(filename)));
+    }
+
+    /** Opens the given file for writing UTF-8, compressed if its name ends with ".gz". */
+    private static Appendable openWrite(String filename) {
+        try {
+            OutputStream output = new FileOutputStream(filename);
+            if (filename.endsWith(".gz"))
+                output = new GZIPOutputStream(output, InputSource.COMPRESSED_BUFFER_SIZE);
+            return new PrintWriter(new OutputStreamWriter(output, "UTF-8"));
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
     }
     
     public void exportMSE(Appendable stream) {
@@ -218,7 +557,7 @@ public class Repository {
     }
 
     public Collection getElements() {
-        return elements;
+        return view;
     }
 
     public MetaRepository getMetamodel() {
@@ -236,6 +575,7 @@ public class Repository {
     public <T> T read(String propertyName, Object element) {
         MetaDescription m = this.descriptionOf(element);
         PropertyDescription p = m.attributeNamed(propertyName);
+        this.load(element);
         T value = (T) p.read(element);
         return value;
     }
@@ -260,11 +600,11 @@ public class Repository {
     }
 
     public <T> int count(Class<T> kind) {
-        Count<Object> query = Count.from(elements);
-        for (Count<Object> each: query) {
-            each.yield = kind.isAssignableFrom(each.element.getClass());
-        }
-        return query.result();
+        return this.extentOf(kind).size();
+    }
+
+    public int count(MetaDescription type) {
+        return this.extentOf(type).size();
     }
 
      
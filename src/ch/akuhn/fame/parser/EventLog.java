@@ -0,0 +1,182 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.util.Arrays;
+
+/**
+ * Records the events of parsing a sequence of element nodes, to replay them
+ * later on. Names are recorded as ids of the symbol table used while parsing,
+ * and replayed as canonical names of the symbol table of the replaying
+ * parser.
+ * 
+ * @see ParallelParser
+ * @author akuhn
+ * 
+ */
+class EventLog implements ParseClient, ImportFilter.SkipClient {
+
+    private static final byte BEGIN_ATTRIBUTE = 0;
+    private static final byte BEGIN_ELEMENT = 1;
+    private static final byte END_ATTRIBUTE = 2;
+    private static final byte END_ELEMENT = 3;
+    private static final byte PRIMITIVE = 4;
+    private static final byte REFERENCE = 5;
+    private static final byte REFERENCE_NAME = 6;
+    private static final byte REFERENCE_NAME_INDEX = 7;
+    private static final byte SERIAL = 8;
+    private static final byte SKIPPED_SERIAL = 9;
+
+    private final SymbolTable symbols;
+    private byte[] kinds;
+    private int[] ints; // symbol ids, serials and references
+    private Object[] values; // primitive values, null for other events
+    private int size;
+
+    public EventLog(SymbolTable symbols) {
+        this.symbols = symbols;
+        this.kinds = new byte[256];
+        this.ints = new int[256];
+        this.values = new Object[256];
+        this.size = 0;
+    }
+
+    private void add(byte kind, int n, Object value) {
+        if (size == kinds.length) {
+            kinds = Arrays.copyOf(kinds, size * 2);
+            ints = Arrays.copyOf(ints, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        kinds[size] = kind;
+        ints[size] = n;
+        values[size] = value;
+        size++;
+    }
+
+    public void beginAttribute(String name) {
+        this.add(BEGIN_ATTRIBUTE, symbols.intern(name), null);
+    }
+
+    public void beginDocument() {
+        throw new AssertionError("Chunks of elements have no document events");
+    }
+
+    public void beginElement(String name) {
+        this.add(BEGIN_ELEMENT, symbols.intern(name), null);
+    }
+
+    public void directive(String name, String... params) {
+        throw new AssertionError("Chunks of elements have no directives");
+    }
+
+    public void endAttribute(String name) {
+        this.add(END_ATTRIBUTE, symbols.intern(name), null);
+    }
+
+    public void endDocument() {
+        throw new AssertionError("Chunks of elements have no document events");
+    }
+
+    public void endElement(String name) {
+        this.add(END_ELEMENT, symbols.intern(name), null);
+    }
+
+    public void primitive(Object value) {
+        this.add(PRIMITIVE, 0, value);
+    }
+
+    public void reference(int index) {
+        this.add(REFERENCE, index, null);
+    }
+
+    public void reference(String name) {
+        this.add(REFERENCE_NAME, symbols.intern(name), null);
+    }
+
+    public void reference(String name, int index) {
+        this.add(REFERENCE_NAME_INDEX, index, name);
+    }
+
+    public void serial(int index) {
+        this.add(SERIAL, index, null);
+    }
+
+    public void skippedSerial(int serial) {
+        this.add(SKIPPED_SERIAL, serial, null);
+    }
+
+    /**
+     * Replays all recorded events to the given client, using the names of the
+     * given symbol table.
+     * 
+     */
+    public void replay(ParseClient client, SymbolTable target) {
+        int[] map = new int[symbols.size()];
+        Arrays.fill(map, -1);
+        for (int n = 0; n < size; n++) {
+            int arg = ints[n];
+            switch (kinds[n]) {
+            case BEGIN_ATTRIBUTE:
+                client.beginAttribute(this.nameOf(arg, map, target));
+                break;
+            case BEGIN_ELEMENT:
+                client.beginElement(this.nameOf(arg, map, target));
+                break;
+            case END_ATTRIBUTE:
+                client.endAttribute(this.nameOf(arg, map, target));
+                break;
+            case END_ELEMENT:
+                client.endElement(this.nameOf(arg, map, target));
+                break;
+            case PRIMITIVE:
+                client.primitive(values[n]);
+                break;
+            case REFERENCE:
+                client.reference(arg);
+                break;
+            case REFERENCE_NAME:
+                client.reference(this.nameOf(arg, map, target));
+                break;
+            case REFERENCE_NAME_INDEX:
+                client.reference((String) values[n], arg);
+                break;
+            case SERIAL:
+                client.serial(arg);
+                break;
+            case SKIPPED_SERIAL:
+                if (client instanceof ImportFilter.SkipClient)
+                    ((ImportFilter.SkipClient) client).skippedSerial(arg);
+                break;
+            default:
+                throw new AssertionError(kinds[n]);
+            }
+        }
+    }
+
+    private String nameOf(int id, int[] map, SymbolTable target) {
+        if (map[id] < 0)
+            map[id] = target.intern(symbols.nameOf(id));
+        return target.nameOf(map[id]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+}
@@ -0,0 +1,30 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+/**
+ * An event type of {@link MseEventReader}, one for each callback of
+ * {@link ParseClient}.
+ * 
+ * @author akuhn
+ * 
+ */
+public enum EventType {
+    BEGIN_ATTRIBUTE, BEGIN_DOCUMENT, BEGIN_ELEMENT, DIRECTIVE, END_ATTRIBUTE, END_DOCUMENT, END_ELEMENT, NAMED_REFERENCE, PRIMITIVE, REFERENCE, SERIAL
+}
@@ -0,0 +1,124 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MSE parser that is fed with chunks of bytes as they arrive, rather than
+ * pulling its input. Events are sent to the client as soon as the bytes of
+ * their tokens (and one token of lookahead) have been fed, eg
+ * 
+ * <pre>
+ * FeedParser parser = new FeedParser(client);
+ * while (channel.read(buffer) &gt;= 0) {
+ *     buffer.flip();
+ *     parser.feed(buffer);
+ *     buffer.clear();
+ * }
+ * parser.endOfInput();
+ * </pre>
+ * 
+ * If an event cannot be completed with the bytes fed so far, the parser rolls
+ * back to the start of the event and resumes from there once at least as many
+ * bytes have been fed as are retained. Hence a long token is rescanned a
+ * logarithmic number of times rather than once per chunk, and parsing takes
+ * time linear in the size of the input. Bytes from the start of the current
+ * event on are retained, hence memory is proportional to the size of the
+ * largest token rather than to the size of the input. Input must be encoded
+ * in UTF-8 (or ASCII).
+ * 
+ * @see MseEventReader
+ * @author akuhn
+ * 
+ */
+public class FeedParser {
+
+    private final ParseClient client;
+    private final InputSource in;
+    private final Scanner stream;
+    private MseEventReader reader; // null until the first token is complete
+    private long fed; // number of bytes fed so far
+    private long deferred; // number of bytes to feed before parsing again
+
+    public FeedParser(ParseClient client) {
+        this(client, new SymbolTable());
+    }
+
+    public FeedParser(ParseClient client, SymbolTable symbols) {
+        this.client = client;
+        this.in = InputSource.forFeeding();
+        this.stream = new Scanner(in, symbols);
+    }
+
+    private void drain() {
+        if (reader == null) {
+            try {
+                reader = new MseEventReader(stream);
+            } catch (InputSource.Underflow ex) {
+                in.seek(0);
+                deferred = fed;
+                return;
+            }
+        }
+        while (true) {
+            long start = stream.tokenStart();
+            reader.save();
+            EventType type;
+            try {
+                if (!reader.hasNext())
+                    return;
+                type = reader.next();
+            } catch (InputSource.Underflow ex) {
+                reader.restore();
+                deferred = fed - start;
+                return;
+            }
+            reader.fire(type, client);
+        }
+    }
+
+    /**
+     * Signals the end of input, and parses the remaining events. Raises a
+     * {@link ParseError} if the document is incomplete.
+     * 
+     */
+    public void endOfInput() {
+        in.endOfInput();
+        this.drain();
+    }
+
+    /**
+     * Feeds the remaining bytes of the given buffer, and parses all events
+     * completed so far, unless parsing is deferred after an incomplete event.
+     * 
+     */
+    public void feed(ByteBuffer bytes) {
+        fed += bytes.remaining();
+        deferred -= bytes.remaining();
+        in.append(bytes);
+        if (deferred <= 0)
+            this.drain();
+    }
+
+    public void feed(byte[] bytes, int offset, int length) {
+        this.feed(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+}
@@ -0,0 +1,91 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.akuhn.fame.fm3.PropertyDescription;
+
+/**
+ * Stack of the open elements of an importer, kept in parallel arrays. Each
+ * frame holds the import plan and the element of an open node, and the
+ * property and values of its open attribute. Importers that keep more about
+ * a frame extend this class and grow their own arrays with {@link #grow(int)}.
+ * 
+ * @author akuhn
+ * 
+ */
+@SuppressWarnings("unchecked")
+class FrameStack {
+
+    public ImportPlan[] plans = new ImportPlan[16];
+    public Object[] elements = new Object[16]; // or null if not yet created
+    public PropertyDescription[] properties = new PropertyDescription[16];
+    public List<Object>[] values = (List<Object>[]) new List<?>[16];
+    public int depth = 0;
+
+    /** Adds the given value to the open attribute of the top frame. */
+    public void add(Object value) {
+        values[depth - 1].add(value);
+    }
+
+    /** Opens the attribute of the given name in the top frame. */
+    public void beginAttribute(SymbolTable symbols, String name) {
+        int top = depth - 1;
+        PropertyDescription property = plans[top].propertyOf(symbols.intern(name), name);
+        assert property != null : "'" + name + "' in " + plans[top].getDescription();
+        properties[top] = property;
+        values[top] = property.isMultivalued() ? new ArrayList<Object>()
+                : new ArrayList<Object>(1);
+    }
+
+    /** Closes the attribute of the top frame. */
+    public void endAttribute() {
+        properties[depth - 1] = null;
+        values[depth - 1] = null;
+    }
+
+    /** Grows the arrays of this stack to the given capacity. */
+    protected void grow(int capacity) {
+        plans = Arrays.copyOf(plans, capacity);
+        elements = Arrays.copyOf(elements, capacity);
+        properties = Arrays.copyOf(properties, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    /** Answers the element of the top frame, and removes the frame. */
+    public Object pop() {
+        depth--;
+        Object element = elements[depth];
+        elements[depth] = null;
+        return element;
+    }
+
+    /** Adds a frame for the given plan and element (or null). */
+    public void push(ImportPlan plan, Object element) {
+        if (depth == plans.length)
+            this.grow(depth * 2);
+        plans[depth] = plan;
+        elements[depth] = element;
+        depth++;
+    }
+
+}
@@ -0,0 +1,233 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.fm3.MetaDescription;
+import ch.akuhn.fame.fm3.PropertyDescription;
+
+/**
+ * Element buffer of a {@link ParallelImporter}, filled by parsing a chunk of
+ * element nodes on a thread of its own. The first phase creates the elements
+ * of the chunk, and writes all attributes that do not refer to serials. The
+ * writes of attributes with references are kept, with the position and serial
+ * of each reference, until all serials of the document are known. The second
+ * phase then resolves the references and writes these attributes, except
+ * those with an opposite, which are written by the third phase on a single
+ * thread.
+ * 
+ * @author akuhn
+ * 
+ */
+@SuppressWarnings("unchecked")
+class ImportBatch extends AbstractParserClient {
+
+    /** Open elements, with the write of their open attribute. */
+    private static class Frames extends FrameStack {
+
+        public int[] writes = new int[16]; // write of open attribute, or -1 if none yet
+
+        @Override
+        protected void grow(int capacity) {
+            super.grow(capacity);
+            writes = Arrays.copyOf(writes, capacity);
+        }
+
+    }
+
+    private final SymbolTable symbols;
+    private final ImportPlan.Table plans;
+
+    private Object[] elements; // in order of their end
+    private int elementCount;
+
+    private int[] serials;
+    private Object[] serialElements;
+    private int serialCount;
+
+    private Object[] owners; // of writes waiting for references
+    private PropertyDescription[] properties; // or null if a reference dangles
+    private List<Object>[] values;
+    private int writeCount;
+
+    private int[] referenceWrites;
+    private int[] referencePositions;
+    private int[] referenceSerials;
+    private int referenceCount;
+    private int danglingReferences;
+
+    private final Frames frames = new Frames();
+
+    public ImportBatch(MetaRepository metamodel, SymbolTable symbols) {
+        this.symbols = symbols;
+        this.plans = new ImportPlan.Table(metamodel, symbols);
+        this.elements = new Object[256];
+        this.serials = new int[256];
+        this.serialElements = new Object[256];
+        this.owners = new Object[64];
+        this.properties = new PropertyDescription[64];
+        this.values = (List<Object>[]) new List<?>[64];
+        this.referenceWrites = new int[64];
+        this.referencePositions = new int[64];
+        this.referenceSerials = new int[64];
+    }
+
+    @Override
+    public void beginAttribute(String name) {
+        frames.beginAttribute(symbols, name);
+        frames.writes[frames.depth - 1] = -1;
+    }
+
+    @Override
+    public void beginElement(String name) {
+        ImportPlan plan = plans.planOf(name);
+        frames.push(plan, plan.newInstance());
+    }
+
+    /** Answers the number of references to unknown serials, after linking. */
+    public int danglingReferences() {
+        return danglingReferences;
+    }
+
+    /** Answers the elements of this batch, in order of their end. */
+    public List<Object> elements() {
+        return Arrays.asList(elements).subList(0, elementCount);
+    }
+
+    @Override
+    public void endAttribute(String name) {
+        int top = frames.depth - 1;
+        if (frames.writes[top] < 0)
+            frames.properties[top].writeAll(frames.elements[top], frames.values[top]);
+        frames.endAttribute();
+    }
+
+    @Override
+    public void endElement(String name) {
+        Object element = frames.pop();
+        if (elementCount == elements.length)
+            elements = Arrays.copyOf(elements, elementCount * 2);
+        elements[elementCount++] = element;
+        if (frames.depth > 0)
+            frames.add(element);
+    }
+
+    /**
+     * Resolves the references of waiting writes against the given serials, and
+     * writes all attributes without an opposite. May run in parallel with
+     * other batches, as each batch writes its own elements only.
+     * 
+     */
+    public void link(SerialTable table, Object[] elements) {
+        for (int n = 0; n < referenceCount; n++) {
+            int write = referenceWrites[n];
+            int entry = table.get(referenceSerials[n]);
+            if (entry == SerialTable.NONE) {
+                properties[write] = null;
+                danglingReferences++;
+            } else
+                values[write].set(referencePositions[n], elements[entry]);
+        }
+        for (int n = 0; n < writeCount; n++) {
+            if (properties[n] != null && !properties[n].hasOpposite())
+                properties[n].writeAll(owners[n], values[n]);
+        }
+    }
+
+    /**
+     * Writes all attributes with an opposite, after {@link #link}. Must not
+     * run in parallel with other batches, as it updates the opposite elements.
+     * 
+     */
+    public void linkOpposites() {
+        for (int n = 0; n < writeCount; n++) {
+            if (properties[n] != null && properties[n].hasOpposite())
+                properties[n].writeAll(owners[n], values[n]);
+        }
+    }
+
+    @Override
+    public void primitive(Object value) {
+        frames.add(value);
+    }
+
+    @Override
+    public void reference(int serial) {
+        int top = frames.depth - 1;
+        if (frames.writes[top] < 0) {
+            if (writeCount == owners.length) {
+                owners = Arrays.copyOf(owners, writeCount * 2);
+                properties = Arrays.copyOf(properties, writeCount * 2);
+                values = Arrays.copyOf(values, writeCount * 2);
+            }
+            owners[writeCount] = frames.elements[top];
+            properties[writeCount] = frames.properties[top];
+            values[writeCount] = frames.values[top];
+            frames.writes[top] = writeCount++;
+        }
+        if (referenceCount == referenceWrites.length) {
+            referenceWrites = Arrays.copyOf(referenceWrites, referenceCount * 2);
+            referencePositions = Arrays.copyOf(referencePositions, referenceCount * 2);
+            referenceSerials = Arrays.copyOf(referenceSerials, referenceCount * 2);
+        }
+        referenceWrites[referenceCount] = frames.writes[top];
+        referencePositions[referenceCount] = frames.values[top].size();
+        referenceSerials[referenceCount] = serial;
+        referenceCount++;
+        frames.add(null);
+    }
+
+    @Override
+    public void reference(String name) {
+        MetaDescription type = MetaDescription.primitiveNamed(name);
+        assert type != null : name;
+        frames.add(type);
+    }
+
+    @Override
+    public void serial(int serial) {
+        if (serialCount == serials.length) {
+            serials = Arrays.copyOf(serials, serialCount * 2);
+            serialElements = Arrays.copyOf(serialElements, serialCount * 2);
+        }
+        serials[serialCount] = serial;
+        serialElements[serialCount] = frames.elements[frames.depth - 1];
+        serialCount++;
+    }
+
+    /**
+     * Adds the serials of this batch to the given table, and their elements to
+     * the given array (by entry), answering the array, grown if need be.
+     * 
+     */
+    public Object[] serials(SerialTable table, Object[] elements) {
+        for (int n = 0; n < serialCount; n++) {
+            int entry = table.put(serials[n]);
+            if (entry == elements.length)
+                elements = Arrays.copyOf(elements, entry * 2);
+            assert elements[entry] == null : "Duplicate serial " + serials[n];
+            elements[entry] = serialElements[n];
+        }
+        return elements;
+    }
+
+}
@@ -0,0 +1,103 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ch.akuhn.fame.parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Selects the elements and attributes to import, eg
+ * 
+ * <pre>
+ * ImportFilter filter = new ImportFilter();
+ * filter.select(&quot;FAMIX.Class&quot;, &quot;name&quot;, &quot;methods&quot;);
+ * filter.select(&quot;FAMIX.Method&quot;);
+ * </pre>
+ * 
+ * imports classes with their name and methods only, and methods with all
+ * their attributes. The {@link Parser} skips all other element and attribute
+ * nodes, including the elements nested in them, by matching parentheses and
+ * quotes only. Skipped nodes are neither tokenized nor reported to the client.
+ * An empty filter selects all elements.
+ * <p>
+ * References to skipped elements are left unresolved by the parser, the
+ * {@link Importer} resolves them according to the policy of the filter. The
+ * parser tells the serials of skipped elements to the importer, references to
+ * serials that are neither imported nor skipped remain dangling.
+ * 
+ * @author akuhn
+ * 
+ */
+public class ImportFilter {
+
+    /** How references to skipped elements are resolved. */
+    public enum Policy {
+        /** References to skipped elements are dropped. */
+        NULL,
+        /**
+         * References to skipped elements refer to a stub, ie an element of the
+         * type of the property without attributes, one per serial.
+         */
+        STUB
+    }
+
+    /** A client that is told the serials of skipped elements. */
+    interface SkipClient {
+
+        void skippedSerial(int serial);
+
+    }
+
+    private final Map<String, Set<String>> selection = new HashMap<String, Set<String>>(); // attributes by element, null if all
+    private Policy policy = Policy.NULL;
+
+    /** Answers if attributes of the given name of selected elements are imported. */
+    boolean acceptsAttribute(String element, String attribute) {
+        Set<String> attributes = selection.get(element);
+        return attributes == null || attributes.contains(attribute);
+    }
+
+    /** Answers if elements of the given name are imported. */
+    boolean acceptsElement(String element) {
+        return selection.isEmpty() || selection.containsKey(element);
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Selects the elements of the given name, with the given attributes only,
+     * or with all attributes if none are given.
+     * 
+     */
+    public ImportFilter select(String element, String... attributes) {
+        selection.put(element, attributes.length == 0 ? null : new HashSet<String>(Arrays.asList(attributes)));
+        return this;
+    }
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+}
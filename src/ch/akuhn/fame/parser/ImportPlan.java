@@ -0,0 +1,152 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.fm3.MetaDescription;
+import ch.akuhn.fame.fm3.PropertyDescription;
+
+/**
+ * Compiled plan to import the elements of one type: their description, their
+ * constructor, and the property of each attribute by symbol id. The names of
+ * types and attributes are resolved against the meta-model once per plan,
+ * rather than once per element and value.
+ * 
+ * @author akuhn
+ * 
+ */
+class ImportPlan {
+
+    /** Plans by symbol id of element name, compiled on first use. */
+    static class Table {
+
+        private final MetaRepository metamodel;
+        private final SymbolTable symbols;
+        private ImportPlan[] plans;
+
+        public Table(MetaRepository metamodel, SymbolTable symbols) {
+            this.metamodel = metamodel;
+            this.symbols = symbols;
+            this.plans = new ImportPlan[Math.max(16, symbols.size())];
+        }
+
+        public ImportPlan planOf(String name) {
+            int id = symbols.intern(name);
+            if (id >= plans.length)
+                plans = Arrays.copyOf(plans, Math.max(id + 1, plans.length * 2));
+            ImportPlan plan = plans[id];
+            if (plan == null) {
+                MetaDescription meta = symbols.descriptionOf(id);
+                if (meta == null) {
+                    // described after the symbol table has been created
+                    meta = metamodel.descriptionNamed(name);
+                    symbols.describe(id, meta);
+                }
+                assert meta != null : name;
+                plan = plans[id] = new ImportPlan(metamodel, meta);
+            }
+            return plan;
+        }
+
+    }
+
+    private final MetaDescription type;
+    private final MetaDescription meta; // description of created instances
+    private final Constructor<?> constructor;
+    private final boolean hasOpposites;
+    private PropertyDescription[] properties; // by symbol id, resolved lazily
+
+    public ImportPlan(MetaRepository metamodel, MetaDescription type) {
+        this.type = type;
+        Class<?> base = type.getBaseClass();
+        if (base == null) {
+            this.meta = type;
+            this.constructor = null;
+        } else {
+            this.meta = metamodel.getDescription(base);
+            this.constructor = constructorOf(base);
+        }
+        this.properties = new PropertyDescription[16];
+        boolean opposites = false;
+        for (PropertyDescription each : meta.allAttributes())
+            opposites |= each.hasOpposite();
+        this.hasOpposites = opposites;
+    }
+
+    private static Constructor<?> constructorOf(Class<?> base) {
+        try {
+            Constructor<?> c = base.getDeclaredConstructor();
+            c.setAccessible(true);
+            return c;
+        } catch (NoSuchMethodException ex) {
+            return null; // fails on first instance, as before
+        } catch (SecurityException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /** Answers the description of the imported elements. */
+    public MetaDescription getDescription() {
+        return meta;
+    }
+
+    /**
+     * Answers if any attribute of the imported elements has an opposite, ie if
+     * the elements may be updated by writing the attributes of other elements.
+     * 
+     */
+    public boolean hasOpposites() {
+        return hasOpposites;
+    }
+
+    public Object newInstance() {
+        if (constructor == null)
+            return type.newInstance();
+        try {
+            return constructor.newInstance();
+        } catch (IllegalAccessException ex) {
+            throw new AssertionError(ex);
+        } catch (InstantiationException ex) {
+            throw new AssertionError(ex);
+        } catch (IllegalArgumentException ex) {
+            throw new AssertionError(ex);
+        } catch (InvocationTargetException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Answers the property of the attribute with the given id and name, or
+     * null if there is no such attribute.
+     * 
+     */
+    public PropertyDescription propertyOf(int id, String name) {
+        if (id >= properties.length)
+            properties = Arrays.copyOf(properties, Math.max(id + 1, properties.length * 2));
+        PropertyDescription property = properties[id];
+        if (property == null)
+            property = properties[id] = meta.attributeNamed(name);
+        return property;
+    }
+
+}
@@ -0,0 +1,226 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+
+package ch.akuhn.fame.parser;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import ch.akuhn.fame.fm3.MetaDescription;
+import ch.akuhn.fame.fm3.PropertyDescription;
+
+/**
+ * Reports where the time of an {@link Importer} goes: bytes and tokens read,
+ * elements created per type, the peak of open (forward) references, and the
+ * nanoseconds spent per phase and per property writer. Set an instance with
+ * {@link Importer#setStatistics(ImportStatistics)}, statistics of several
+ * imports accumulate.
+ * <p>
+ * Statistics are cheap enough to be left on: counters are looked up once per
+ * element and attribute, and only one in {@value #SAMPLING} calls is timed
+ * (two reads of {@link System#nanoTime()}), the nanoseconds of calls and
+ * phases are estimated from these samples. Each element type, property
+ * writer and phase counts down to its own samples, so that the samples of
+ * one do not alias with the regular structure of a model. Time spent in the scanner and
+ * parser is not measured directly but answered as the total time less the
+ * time of all other phases. Tokens are counted if the input is parsed
+ * sequentially only.
+ * 
+ * @author akuhn
+ * 
+ */
+public class ImportStatistics {
+
+    /** The phases of an import. */
+    public enum Phase {
+        /** Scanning and parsing, including the bookkeeping of the importer. */
+        PARSE,
+        /** Creating elements. */
+        INSTANTIATE,
+        /** Writing the values of attributes, using reflection. */
+        WRITE,
+        /** Resolving forward references, except for writing the values. */
+        RESOLVE,
+        /** Adding the elements to the model. */
+        REGISTER
+    }
+
+    /** Count and nanoseconds of one element type or property writer. */
+    public static class Counter {
+
+        private long count;
+        private long nanos;
+        private int countdown = SAMPLING; // calls until next sample
+
+        void count() {
+            count++;
+        }
+
+        /** Answers if the next call is to be timed. */
+        boolean sample() {
+            if (--countdown > 0)
+                return false;
+            countdown = SAMPLING;
+            return true;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return count + " in " + nanos / 1000 + " us";
+        }
+
+    }
+
+    /** One in this many calls is timed. */
+    public static final int SAMPLING = 16;
+
+    private final Map<MetaDescription, Counter> types = new IdentityHashMap<MetaDescription, Counter>();
+    private final Map<PropertyDescription, Counter> writers = new IdentityHashMap<PropertyDescription, Counter>();
+    private final long[] nanos = new long[Phase.values().length];
+    private long totalNanos;
+    private long bytes;
+    private long tokens;
+    private int openReferencesPeak;
+    private final int[] countdowns = new int[Phase.values().length]; // per phase
+
+    void add(Phase phase, long elapsed) {
+        nanos[phase.ordinal()] += elapsed;
+    }
+
+    /** Answers if the next call of the given phase is to be timed. */
+    boolean sample(Phase phase) {
+        if (--countdowns[phase.ordinal()] > 0)
+            return false;
+        countdowns[phase.ordinal()] = SAMPLING;
+        return true;
+    }
+
+    /** Adds the time of a sampled call, to the given phase and counter (if any). */
+    void sampled(Phase phase, Counter counter, long elapsed) {
+        long estimate = elapsed * SAMPLING;
+        nanos[phase.ordinal()] += estimate;
+        if (counter != null)
+            counter.nanos += estimate;
+    }
+
+    /** Answers the number of bytes read. */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public double getBytesPerSecond() {
+        return totalNanos == 0 ? 0 : bytes * 1e9 / totalNanos;
+    }
+
+    /** Answers the number of elements created. */
+    public long getElements() {
+        long count = 0;
+        for (Counter each : types.values())
+            count += each.count;
+        return count;
+    }
+
+    /** Answers count and instantiation time of elements, by type. */
+    public Map<MetaDescription, Counter> getElementsPerType() {
+        return Collections.unmodifiableMap(types);
+    }
+
+    public long getNanos(Phase phase) {
+        if (phase != Phase.PARSE)
+            return nanos[phase.ordinal()];
+        long parse = totalNanos;
+        for (Phase each : Phase.values())
+            if (each != Phase.PARSE)
+                parse -= nanos[each.ordinal()];
+        return parse;
+    }
+
+    /**
+     * Answers the maximal number of references that were open at the same
+     * time, ie references to elements that have not yet been read.
+     * 
+     */
+    public int getOpenReferencesPeak() {
+        return openReferencesPeak;
+    }
+
+    /** Answers the number of tokens scanned. */
+    public long getTokens() {
+        return tokens;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /** Answers count and time of writing attribute values, by property. */
+    public Map<PropertyDescription, Counter> getWriters() {
+        return Collections.unmodifiableMap(writers);
+    }
+
+    void openReferences(int peak) {
+        openReferencesPeak = Math.max(openReferencesPeak, peak);
+    }
+
+    void read(long byteCount, long tokenCount, long elapsed) {
+        bytes += byteCount;
+        tokens += tokenCount;
+        totalNanos += elapsed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append(bytes).append(" bytes, ").append(tokens).append(" tokens, ");
+        buf.append(this.getElements()).append(" elements in ").append(totalNanos / 1000000).append(" ms (");
+        buf.append((long) (this.getBytesPerSecond() / 1024)).append(" kB/s), ");
+        buf.append(openReferencesPeak).append(" open references at most\n");
+        for (Phase each : Phase.values())
+            buf.append(each).append('\t').append(this.getNanos(each) / 1000000).append(" ms\n");
+        for (Map.Entry<MetaDescription, Counter> each : types.entrySet())
+            buf.append(each.getKey().getFullname()).append('\t').append(each.getValue()).append('\n');
+        for (Map.Entry<PropertyDescription, Counter> each : writers.entrySet())
+            buf.append(each.getKey().getFullname()).append('\t').append(each.getValue()).append('\n');
+        return buf.toString();
+    }
+
+    Counter typeCounter(MetaDescription type) {
+        Counter counter = types.get(type);
+        if (counter == null)
+            types.put(type, counter = new Counter());
+        return counter;
+    }
+
+    Counter writerCounter(PropertyDescription property) {
+        Counter counter = writers.get(property);
+        if (counter == null)
+            writers.put(property, counter = new Counter());
+        return counter;
+    }
+
+}
@@ -19,12 +19,11 @@
 package ch.akuhn.fame.parser;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Stack;
-import java.util.TreeMap;
 
 import ch.akuhn.fame.MetaRepository;
 import ch.akuhn.fame.Repository;
@@ -33,12 +32,19 @@ import ch.akuhn.fame.fm3.PropertyDescription;
 
 /**
  * Reads MSE document from input-stream (in one pass).
+ * <p>
+ * If an {@link ImportFilter} is set, only the selected elements and attributes
+ * are imported. References to skipped elements are resolved at the end of the
+ * document according to the policy of the filter.
+ * <p>
+ * If {@link ImportStatistics} are set, the importer reports where its time
+ * goes.
  * 
  * @author akuhn
  * 
  */
 @SuppressWarnings("unchecked")
-public class Importer extends AbstractParserClient {
+public class Importer extends AbstractParserClient implements ImportFilter.SkipClient {
 
     /** Retains information about parsing an element. */
     private class Elem {
@@ -46,34 +52,23 @@ public class Importer extends AbstractParserClient {
         /** Retains information about parsing an attribute. */
         private class Attr {
 
-            /** Retains information about a dangling reference. */
-            private class Rem {
-
-                private int pos;
-
-                public Rem() {
-                    this.pos = values.size();
-                    openReferences++;
-                }
-
-                public void resolve(Object element) {
-                    assert element != null;
-                    values.set(pos, element);
-                    openReferences--;
-                    maybeEnd();
-                }
-
-            }
-
             private List<Object> values;
             private String attributeName;
+            private PropertyDescription property;
 
             private int openReferences;
+            private boolean hasSkipped; // references to skipped elements
+            private ImportStatistics.Counter writer; // null if no statistics
 
             public Attr(String name) {
                 this.attributeName = name;
+                this.property = plan.propertyOf(symbols.intern(name), name);
+                assert property != null : "'" + name + "' in " + plan.getDescription();
                 this.openReferences = 0;
-                this.values = new ArrayList();
+                this.values = property.isMultivalued() ? new ArrayList<Object>()
+                        : new ArrayList<Object>(1);
+                if (statistics != null)
+                    this.writer = statistics.writerCounter(property);
             }
 
             public void add(Object value) {
@@ -85,32 +80,61 @@ public class Importer extends AbstractParserClient {
                 maybeEnd();
             }
 
+            private void resolve(int pos, Object element) {
+                if (element == null)
+                    hasSkipped = true;
+                values.set(pos, element);
+                openReferences--;
+                maybeEnd();
+            }
+
             private void maybeEnd() {
                 if (openReferences > 0)
                     return;
-                Object parent = Elem.this.getElement();
-                MetaDescription meta = metamodel.getDescription(parent.getClass());
-                PropertyDescription property = meta.attributeNamed(attributeName);
-                assert property != null : "'" + attributeName + "' in " + meta;
-                property.writeAll(parent, values);
+                if (hasSkipped)
+                    values.removeAll(Collections.singleton(null));
+                Object element = Elem.this.getElement();
+                if (writer == null) {
+                    property.writeAll(element, values);
+                    return;
+                }
+                writer.count();
+                boolean sampled = writer.sample();
+                if (!sampled && resolveWrites < 0) {
+                    property.writeAll(element, values);
+                    return;
+                }
+                long start = System.nanoTime();
+                property.writeAll(element, values);
+                long elapsed = System.nanoTime() - start;
+                if (resolveWrites >= 0)
+                    resolveWrites += elapsed;
+                if (sampled)
+                    statistics.sampled(ImportStatistics.Phase.WRITE, writer, elapsed);
             }
 
             public void reference(int serial) {
                 Object element = index.retrieve(serial);
-                values.add(element == null ? index.keepReminder(new Rem(), serial) : element);
-
+                if (element == null) {
+                    index.keepReminder(this, values.size(), serial);
+                    openReferences++;
+                }
+                values.add(element);
             }
 
         }
 
-        private String elementName;
+        private ImportPlan plan;
         private Attr currentAttribute;
         private Object actualElement;
+        private ImportStatistics.Counter type; // null if no statistics
 
         public Elem(String name) {
-            this.elementName = name;
+            this.plan = plans.planOf(name);
             this.actualElement = null;
             this.currentAttribute = null;
+            if (statistics != null)
+                this.type = statistics.typeCounter(plan.getDescription());
         }
 
         public void add(Object value) {
@@ -128,11 +152,17 @@ public class Importer extends AbstractParserClient {
         }
 
         public Object getElement() {
-            if (actualElement != null)
-                return actualElement;
-            MetaDescription meta = metamodel.descriptionNamed(elementName);
-            assert meta != null : elementName;
-            actualElement = meta.newInstance();
+            if (actualElement == null) {
+                if (type == null || !type.sample()) {
+                    actualElement = plan.newInstance();
+                } else {
+                    long start = System.nanoTime();
+                    actualElement = plan.newInstance();
+                    statistics.sampled(ImportStatistics.Phase.INSTANTIATE, type, System.nanoTime() - start);
+                }
+                if (type != null)
+                    type.count();
+            }
             return actualElement;
         }
 
@@ -146,48 +176,148 @@ public class Importer extends AbstractParserClient {
     }
 
     /**
-     * Keeps track of assigned indices and open references.
+     * Keeps track of assigned indices and open references. Serials are mapped
+     * to entries by a {@link SerialTable}, the element and the open references
+     * of a serial are kept in arrays by entry. The open references to a
+     * serial are kept as a chain of reminders, each being an attribute and the
+     * position of the reference in its values, linked by their index.
      */
     private class Index {
 
-        private Map<Integer, Object> serials = new TreeMap<Integer, Object>();
-        private Map<Integer, Collection<Elem.Attr.Rem>> reminders = new TreeMap<Integer, Collection<Elem.Attr.Rem>>();
+        private static final int NONE = -1;
+
+        private final SerialTable table = new SerialTable();
+        private Object[] elements = new Object[1024]; // by entry
+        private int[] chains = new int[1024]; // first reminder + 1, or 0 if none
+
+        private Elem.Attr[] attributes = new Elem.Attr[256];
+        private int[] positions = new int[256];
+        private int[] links = new int[256]; // next reminder in chain or free list
+        private int reminders = 0;
+        private int free = NONE;
         private int openReferences = 0;
+        private int peak = 0; // of open references
+
+        private int[] skipped = new int[16]; // serials of skipped elements
+        private int skippedCount = 0;
 
         public void assign(int serial, Object element) {
             assert element != null;
-            assert !serials.containsKey(serial);
-            serials.put(serial, element);
-            resolveReminders(serial, element);
+            int entry = this.entryOf(serial);
+            assert elements[entry] == null : "Duplicate serial " + serial;
+            elements[entry] = element;
+            if (chains[entry] != 0) {
+                int first = chains[entry] - 1;
+                chains[entry] = 0;
+                if (statistics == null
+                        || !statistics.sample(ImportStatistics.Phase.RESOLVE)) {
+                    resolveReminders(first, element);
+                } else {
+                    resolveWrites = 0; // time all writes of this resolution
+                    long start = System.nanoTime();
+                    resolveReminders(first, element);
+                    long elapsed = System.nanoTime() - start - resolveWrites;
+                    resolveWrites = -1;
+                    statistics.sampled(ImportStatistics.Phase.RESOLVE, null, elapsed);
+                }
+            }
+        }
+
+        private int entryOf(int serial) {
+            int entry = table.put(serial);
+            if (entry == elements.length) {
+                elements = Arrays.copyOf(elements, entry * 2);
+                chains = Arrays.copyOf(chains, entry * 2);
+            }
+            return entry;
         }
 
         public boolean hasDanglingReferences() {
             return openReferences > 0;
         }
 
-        public Elem.Attr.Rem keepReminder(Elem.Attr.Rem reminder, int serial) {
-            assert !serials.containsKey(serial);
-            Collection<Elem.Attr.Rem> todo = reminders.get(serial);
-            if (todo == null)
-                reminders.put(serial, todo = new LinkedList<Elem.Attr.Rem>());
-            todo.add(reminder);
-            openReferences++;
-            return reminder;
+        /**
+         * Resolves the open references to serials of skipped elements, to null
+         * or to a stub per serial. Stubs are instances of the type of the
+         * first property that refers to them, or null if that type is
+         * abstract. Must be called at the end of the document only, as the
+         * chains of resolved serials are emptied.
+         * 
+         */
+        public void resolveSkipped(ImportFilter.Policy policy) {
+            for (int n = 0; n < skippedCount; n++) {
+                int entry = table.get(skipped[n]);
+                if (entry == SerialTable.NONE || chains[entry] == 0)
+                    continue;
+                int first = chains[entry] - 1;
+                chains[entry] = 0;
+                int tail = first; // the chain is last in, first out
+                while (links[tail] != NONE)
+                    tail = links[tail];
+                Object stub = null;
+                MetaDescription type = attributes[tail].property.getType();
+                if (policy == ImportFilter.Policy.STUB && !type.isAbstract() && !type.isRoot()) {
+                    stub = plans.planOf(type.getFullname()).newInstance();
+                    Importer.this.elements.add(stub);
+                }
+                resolveReminders(first, stub);
+            }
+        }
+
+        public void keepReminder(Elem.Attr attribute, int position, int serial) {
+            int entry = this.entryOf(serial);
+            assert elements[entry] == null;
+            int reminder = free;
+            if (reminder == NONE) {
+                if (reminders == links.length) {
+                    attributes = Arrays.copyOf(attributes, reminders * 2);
+                    positions = Arrays.copyOf(positions, reminders * 2);
+                    links = Arrays.copyOf(links, reminders * 2);
+                }
+                reminder = reminders++;
+            } else {
+                free = links[reminder];
+            }
+            attributes[reminder] = attribute;
+            positions[reminder] = position;
+            links[reminder] = chains[entry] - 1;
+            chains[entry] = reminder + 1;
+            if (++openReferences > peak)
+                peak = openReferences;
         }
 
-        private void resolveReminders(int serial, Object element) {
-            Collection<Elem.Attr.Rem> todo = reminders.remove(serial);
-            if (todo == null)
-                return;
-            for (Elem.Attr.Rem each : todo) {
-                each.resolve(element);
+        private void resolveReminders(int first, Object element) {
+            // reverse the chain, to resolve in the order of reference
+            int reversed = NONE;
+            for (int each = first; each != NONE;) {
+                int next = links[each];
+                links[each] = reversed;
+                reversed = each;
+                each = next;
+            }
+            for (int each = reversed; each != NONE;) {
+                Elem.Attr attribute = attributes[each];
+                int position = positions[each];
+                int next = links[each];
+                attributes[each] = null;
+                links[each] = free;
+                free = each;
                 openReferences--;
                 assert openReferences >= 0;
+                attribute.resolve(position, element);
+                each = next;
             }
         }
 
+        public void skipped(int serial) {
+            if (skippedCount == skipped.length)
+                skipped = Arrays.copyOf(skipped, skippedCount * 2);
+            skipped[skippedCount++] = serial;
+        }
+
         public Object retrieve(int serial) {
-            return serials.get(serial);
+            int entry = table.get(serial);
+            return entry == SerialTable.NONE ? null : elements[entry];
         }
 
     }
@@ -196,12 +326,22 @@ public class Importer extends AbstractParserClient {
 
     private Collection elements;
 
+    private ImportFilter filter;
+
+    private ImportStatistics statistics;
+
+    private long resolveWrites = -1; // nanos of writes during a sampled resolution, or -1
+
     private Index index;
 
     private MetaRepository metamodel;
 
     private Repository model;
 
+    private ImportPlan.Table plans;
+
+    private SymbolTable symbols;
+
     public Importer(MetaRepository metamodel) {
         this(metamodel, new Repository(metamodel));
     }
@@ -209,6 +349,8 @@ public class Importer extends AbstractParserClient {
     public Importer(MetaRepository metamodel, Repository model) {
         this.metamodel = metamodel;
         this.model = model;
+        this.symbols = new SymbolTable(metamodel);
+        this.plans = new ImportPlan.Table(metamodel, symbols);
     }
     
     @Override
@@ -219,7 +361,7 @@ public class Importer extends AbstractParserClient {
     @Override
     public void beginDocument() {
         this.index = new Index();
-        this.elements = new ArrayList();
+        this.elements = new ArrayList<Object>();
         this.elementStack = new Stack<Elem>();
     }
 
@@ -237,11 +379,16 @@ public class Importer extends AbstractParserClient {
     public void endDocument() {
         assert elementStack.isEmpty();
         this.elementStack = null;
+        if (filter != null)
+            index.resolveSkipped(filter.getPolicy());
         assert !index.hasDanglingReferences();
+        if (statistics != null)
+            statistics.openReferences(index.peak);
         this.index = null;
-        for (Object element : elements) {
-            model.add(element);
-        }
+        long start = statistics == null ? 0 : System.nanoTime();
+        model.registerAll(elements);
+        if (statistics != null)
+            statistics.add(ImportStatistics.Phase.REGISTER, System.nanoTime() - start);
         this.elements = null;
     }
 
@@ -259,14 +406,40 @@ public class Importer extends AbstractParserClient {
         return model;
     }
 
+    public ImportStatistics getStatistics() {
+        return statistics;
+    }
+
     @Override
     public void primitive(Object value) {
         elementStack.peek().add(value);
     }
 
     public void readFrom(InputSource in) {
-        Parser parser = new Parser(new Scanner(in));
+        long origin = in.index();
+        long start = System.nanoTime();
+        Scanner scanner = new Scanner(in, symbols);
+        Parser parser = new Parser(scanner);
+        parser.setFilter(filter);
+        parser.accept(this);
+        if (statistics != null)
+            statistics.read(in.index() - origin, scanner.tokenCount(), System.nanoTime() - start);
+    }
+
+    /**
+     * Reads from the given input, parsing its top-level elements on multiple
+     * threads. Elements are created and resolved on the calling thread.
+     * 
+     */
+    public void readInParallelFrom(InputSource in) {
+        long origin = in.index();
+        long length = in.isRandomAccess() ? in.length() : -1;
+        long start = System.nanoTime();
+        ParallelParser parser = new ParallelParser(in, symbols);
+        parser.setFilter(filter);
         parser.accept(this);
+        if (statistics != null)
+            statistics.read((length < 0 ? in.index() : length) - origin, 0, System.nanoTime() - start);
     }
 
     @Override
@@ -282,6 +455,25 @@ public class Importer extends AbstractParserClient {
         elementStack.peek().add(type);
     }
 
+    /**
+     * Imports only the elements and attributes selected by the given filter,
+     * or all if null.
+     * 
+     */
+    public void setFilter(ImportFilter filter) {
+        this.filter = filter;
+    }
+
+    /** Collects statistics of subsequent imports into the given instance, or none if null. */
+    public void setStatistics(ImportStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /** Called by the parser for each serial of a skipped element. */
+    public void skippedSerial(int serial) {
+        index.skipped(serial);
+    }
+
     @Override
     public void serial(int serial) {
         elementStack.peek().serial(serial);
@@ -18,61 +18,294 @@
 
 package ch.akuhn.fame.parser;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
-import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import ch.akuhn.util.Throw;
 
+/**
+ * Byte input of the {@link Scanner}. Content is accessed through a window of
+ * raw bytes, which is either a mapped segment of a file or a bounded,
+ * refillable buffer. Memory consumption is thus proportional to the size of
+ * the window (plus the size of the longest token) rather than to the size of
+ * the input. Bytes between {@link #mark()} and the current index are retained
+ * across refills, hence {@link #yank()} works for tokens that straddle the
+ * boundary of two windows. Indices are <code>long</code>, files larger than
+ * 2 GB are mapped segment by segment.
+ * <p>
+ * Bytes are not decoded while scanning, {@link #peek()} answers each byte as
+ * the char of same value. Only the content of tokens is decoded, using the
+ * charset of the source. Tokens that consist of ASCII only are decoded on a
+ * fast path, tokens that are not valid UTF-8 fall back to ISO-8859-1 such
+ * that legacy files still read correctly. Files and streams default to UTF-8,
+ * a byte order mark is detected and skipped. Sources of characters (strings
+ * and readers) and sources in charsets that are not a superset of ASCII (such
+ * as UTF-16) are encoded as UTF-8 on the fly.
+ * <p>
+ * Files and streams compressed with gzip are detected by their magic bytes
+ * and decompressed on the fly, optionally on a separate thread, see
+ * {@link #fromFile(File, boolean)}. Deflated input with a zlib header has no
+ * magic bytes that set it apart from text, it is decompressed for files
+ * named <tt>.z</tt> or <tt>.zz</tt>, and by
+ * {@link #fromDeflated(InputStream)}.
+ * 
+ */
 public class InputSource implements Iterator<Character>, Iterable<Character> {
 
     public static final char EOF = (char) -1;
 
+    /**
+     * Raised when reading beyond the bytes appended to a source for feeding,
+     * before the end of input.
+     * 
+     */
+    @SuppressWarnings("serial")
+    static final class Underflow extends RuntimeException {
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this; // used for control flow only
+        }
+
+    }
+
+    private static final Underflow UNDERFLOW = new Underflow();
+
+    /** Default size of the refillable window, in bytes. */
+    public static final int WINDOW_SIZE = 1 << 16;
+
+    private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /** Size of buffers used to decompress input, in bytes. */
+    public static final int COMPRESSED_BUFFER_SIZE = 1 << 16;
+
+    /** Default size of mapped file segments, in bytes. */
+    public static final int SEGMENT_SIZE = 1 << 28;
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Charset UTF16BE = Charset.forName("UTF-16BE");
+
+    private static final Charset UTF16LE = Charset.forName("UTF-16LE");
+
+    /** Encodes characters of a reader into bytes, as they are requested. */
+    private static class EncodingChannel implements ReadableByteChannel {
+
+        private final CharBuffer chars;
+        private final CharsetEncoder encoder;
+        private boolean endOfInput;
+        private boolean flushed;
+        private Reader reader;
+
+        public EncodingChannel(Reader reader, Charset charset) {
+            this.reader = reader;
+            this.encoder = charset.newEncoder();
+            this.chars = CharBuffer.allocate(8192);
+            this.chars.flip();
+        }
+
+        public void close() throws IOException {
+            if (reader != null)
+                reader.close();
+            reader = null;
+        }
+
+        public boolean isOpen() {
+            return reader != null;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            int before = dst.position();
+            while (!flushed && dst.hasRemaining()) {
+                CoderResult result = encoder.encode(chars, dst, endOfInput);
+                if (result.isError())
+                    result.throwException();
+                if (result.isOverflow())
+                    break;
+                if (endOfInput) {
+                    if (encoder.flush(dst).isOverflow())
+                        break;
+                    flushed = true;
+                    break;
+                }
+                chars.compact();
+                if (reader.read(chars) < 0)
+                    endOfInput = true;
+                chars.flip();
+            }
+            int count = dst.position() - before;
+            return count == 0 && flushed ? -1 : count;
+        }
+
+    }
+
+    /**
+     * Answers the charset indicated by a byte order mark, or <code>null</code>
+     * if the given bytes do not start with a byte order mark.
+     * 
+     */
+    private static Charset charsetOfByteOrderMark(byte[] head, int length) {
+        if (length >= 3 && head[0] == (byte) 0xEF && head[1] == (byte) 0xBB && head[2] == (byte) 0xBF)
+            return UTF8;
+        if (length >= 2 && head[0] == (byte) 0xFE && head[1] == (byte) 0xFF)
+            return UTF16BE;
+        if (length >= 2 && head[0] == (byte) 0xFF && head[1] == (byte) 0xFE)
+            return UTF16LE;
+        return null;
+    }
+
+    /**
+     * Answers if the given bytes start with the magic bytes of gzip, which
+     * cannot start an MSE document.
+     * 
+     */
+    private static boolean isGzip(byte[] head, int length) {
+        return length >= 2 && (head[0] & 0xFF) == 0x1F && (head[1] & 0xFF) == 0x8B;
+    }
+
+    /** Answers if the name of the given file ends with ".z" or ".zz". */
+    private static boolean isDeflated(File file) {
+        String name = file.getName();
+        return name.endsWith(".z") || name.endsWith(".zz");
+    }
+
+    private static InputStream decompress(InputStream input, boolean gzip, boolean readAhead) throws IOException {
+        InputStream stream = gzip ? new GZIPInputStream(input, COMPRESSED_BUFFER_SIZE)
+                : new InflaterInputStream(input, new Inflater(), COMPRESSED_BUFFER_SIZE);
+        return readAhead ? new ReadAheadInputStream(stream, COMPRESSED_BUFFER_SIZE, 4) : stream;
+    }
+
+    private static int lengthOfByteOrderMark(Charset charset) {
+        return charset == UTF8 ? 3 : 2;
+    }
+
+    /**
+     * Answers if the scanner can work on the encoded bytes directly, ie if
+     * ASCII characters are encoded as themselves and no other character is
+     * encoded using bytes in the ASCII range.
+     * 
+     */
+    private static boolean isAsciiCompatible(Charset charset) {
+        return charset.equals(UTF8) || charset.equals(LATIN1) || charset.name().equals("US-ASCII");
+    }
+
+    public static InputSource fromBytes(byte[] bytes) {
+        return fromBytes(bytes, UTF8);
+    }
+
+    public static InputSource fromBytes(byte[] bytes, Charset charset) {
+        if (isGzip(bytes, bytes.length))
+            return fromInputStream(new ByteArrayInputStream(bytes), charset);
+        Charset bom = charsetOfByteOrderMark(bytes, bytes.length);
+        if (bom != null)
+            charset = bom;
+        if (!isAsciiCompatible(charset))
+            return fromInputStream(new ByteArrayInputStream(bytes), charset);
+        InputSource source = new InputSource(ByteBuffer.wrap(bytes), charset);
+        if (bom != null)
+            source.skipPreamble(lengthOfByteOrderMark(bom));
+        return source;
+    }
+
     public static InputSource fromFile(File file) {
-        try {
-            /*
-             * There is one specialized form of direct ByteBuffer known as a
-             * MappedByteBuffer. This class represents a buffer of bytes mapped
-             * to a file. To map a file to a MappedByteBuffer, you first must
-             * get the channel for a file. A channel represents a connection to
-             * something, such as a pipe, socket, or file, that can perform I/O
-             * operations. In the case of a FileChannel, you can get one from a
-             * FileInputStream, FileOutputStream, or RandomAccessFile through
-             * the getChannel method. Once you have the channel, you map it to a
-             * buffer with map, specifying the mode and portion of the file you
-             * want to map. The file channel can be opened with one of the
-             * FileChannel.MapMode constants: read-only (READ_ONLY),
-             * private/copy-on-write (PRIVATE), or read-write (READ_WRITE).
-             */
+        return fromFile(file, UTF8, SEGMENT_SIZE);
+    }
+
+    public static InputSource fromFile(File file, Charset charset) {
+        return fromFile(file, charset, SEGMENT_SIZE);
+    }
+
+    public static InputSource fromFile(File file, int segmentSize) {
+        return fromFile(file, UTF8, segmentSize);
+    }
+
+    /**
+     * Reads the given file, if the file is compressed and read ahead is
+     * enabled, decompresses it on a separate thread while the scanner works.
+     * The thread terminates at the end of input, or if the source is closed.
+     * 
+     */
+    public static InputSource fromFile(File file, boolean readAhead) {
+        return fromFile(file, UTF8, SEGMENT_SIZE, readAhead);
+    }
 
+    /**
+     * Maps the file rather than reading it, the mapping serves as window and
+     * the scanner works directly on the mapped bytes. Files larger than the
+     * given segment size are mapped one segment after the other, the next
+     * segment starting at the mark (or at the current index if there is no
+     * mark).
+     * 
+     */
+    public static InputSource fromFile(File file, Charset charset, int segmentSize) {
+        return fromFile(file, charset, segmentSize, false);
+    }
+
+    private static InputSource fromFile(File file, Charset charset, int segmentSize, boolean readAhead) {
+        try {
             FileInputStream input = new FileInputStream(file);
             FileChannel channel = input.getChannel();
-            long fileLength = channel.size();
-            MappedByteBuffer buffer = channel.map(
-                    FileChannel.MapMode.READ_ONLY, 0, fileLength);
-
-            /*
-             * If you need to treat the bytes as characters, you must convert
-             * the ByteBuffer into a CharBuffer through the use of a character
-             * set for the conversion. This character set is specified by the
-             * Charset class. You then decode the file contents through the
-             * CharsetDecoder class. There is also a CharsetEncoder to go in the
-             * other direction.
-             */
-
-            Charset charset = Charset.forName("ISO-8859-1");
-            CharsetDecoder decoder = charset.newDecoder();
-            CharBuffer charBuffer = decoder.decode(buffer);
-
-            return fromString(charBuffer);
-        } catch (Exception ex) {
+            byte[] head = new byte[3];
+            int length = Math.max(0, channel.read(ByteBuffer.wrap(head), 0));
+            if (isGzip(head, length) || isDeflated(file))
+                return fromInputStream(decompress(input, isGzip(head, length), readAhead), charset);
+            Charset bom = charsetOfByteOrderMark(head, length);
+            if (bom != null)
+                charset = bom;
+            if (!isAsciiCompatible(charset)) {
+                channel.position(0);
+                return fromInputStream(input, charset);
+            }
+            InputSource source;
+            long size = channel.size();
+            if (size > segmentSize) {
+                source = new InputSource(channel, 0, size, segmentSize, charset, true);
+            } else {
+                // mapping remains valid after the channel has been closed
+                source = new InputSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), charset);
+                input.close();
+            }
+            if (bom != null)
+                source.skipPreamble(lengthOfByteOrderMark(bom));
+            return source;
+        } catch (IOException ex) {
+            throw Throw.exception(ex);
+        }
+    }
+
+    /**
+     * Reads the given stream of deflated bytes with zlib header, eg as written
+     * by a <tt>DeflaterOutputStream</tt>, decompressing it on the fly.
+     * 
+     */
+    public static InputSource fromDeflated(InputStream stream) {
+        try {
+            return fromInputStream(decompress(stream, false, false));
+        } catch (IOException ex) {
             throw Throw.exception(ex);
         }
     }
@@ -82,18 +315,47 @@ public class InputSource implements Iterator<Character>, Iterable<Character> {
     }
 
     public static InputSource fromInputStream(InputStream stream) {
-        StringBuilder buf = new StringBuilder();
+        return fromInputStream(stream, UTF8);
+    }
+
+    public static InputSource fromInputStream(InputStream stream, Charset charset) {
         try {
-            while (true) {
-                int ch = stream.read();
-                if (ch < 0) break;
-                buf.append((char) ch);
+            PushbackInputStream input = new PushbackInputStream(stream, 3);
+            byte[] head = new byte[3];
+            int length = 0;
+            for (int n; length < head.length && (n = input.read(head, length, head.length - length)) > 0;)
+                length += n;
+            if (isGzip(head, length)) {
+                input.unread(head, 0, length);
+                return fromInputStream(decompress(input, true, false), charset);
+            }
+            Charset bom = charsetOfByteOrderMark(head, length);
+            int skip = 0;
+            if (bom != null) {
+                charset = bom;
+                skip = lengthOfByteOrderMark(bom);
             }
-            stream.close();
+            input.unread(head, skip, length - skip);
+            if (!isAsciiCompatible(charset))
+                return fromReader(new InputStreamReader(input, charset));
+            return new InputSource(Channels.newChannel(input), charset, WINDOW_SIZE);
         } catch (IOException ex) {
-            throw new RuntimeException(ex);
+            throw Throw.exception(ex);
         }
-        return fromString(buf);
+    }
+
+    /**
+     * Answers an empty source, to which a {@link FeedParser} appends bytes as
+     * they arrive. Reading beyond the appended bytes raises an underflow,
+     * until the end of input has been signaled.
+     * 
+     */
+    static InputSource forFeeding() {
+        return new InputSource((ReadableByteChannel) null, UTF8, WINDOW_SIZE);
+    }
+
+    public static InputSource fromReader(Reader reader) {
+        return new InputSource(new EncodingChannel(reader, UTF8), UTF8, WINDOW_SIZE);
     }
 
     public static InputSource fromResource(String name) {
@@ -102,28 +364,275 @@ public class InputSource implements Iterator<Character>, Iterable<Character> {
     }
 
     public static InputSource fromString(CharSequence string) {
-        return new InputSource(string);
+        return new InputSource(ByteBuffer.wrap(string.toString().getBytes(UTF8)), UTF8);
     }
 
-    private int index;
-    private int start;
-    private final int length;
-    private final CharSequence string;
+    private long index;
+    private long start;
+    private long origin; // index of first byte after byte order mark
 
-    private int line;
-    private int prevLineBreak;
+    private ByteBuffer buffer;
+    private byte[] array; // backing array of buffer, if any
+    private long offset; // index of first byte in buffer
+    private int limit; // number of valid bytes in buffer
+    private ReadableByteChannel channel; // null if in-memory or exhausted
+    private FileChannel file; // null unless mapped segment by segment
+    private boolean ownsFile; // false for slices, which share the file
+    private long fileSize;
+    private int segmentSize;
+    private final boolean rewindable;
+    private final boolean fed; // bytes are appended by a FeedParser
+    private boolean ended; // no more bytes will be appended
+    private long hold; // index before which bytes may be dropped, or -1
+    private final Charset charset;
+    private CharsetDecoder decoder; // strict decoder of non-ASCII tokens
 
-    private InputSource(CharSequence string) {
+    // line breaks are counted lazily, up to the index of the checkpoint
+    private long checkpoint;
+    private int line; // at checkpoint
+    private long prevLineBreak; // before checkpoint
+
+    private InputSource(ByteBuffer buffer, Charset charset) {
+        this.buffer = buffer;
+        this.array = buffer.hasArray() ? buffer.array() : null;
+        this.limit = buffer.limit();
+        this.channel = null;
+        this.rewindable = true;
+        this.fed = false;
+        this.charset = charset;
+        this.initialize();
+    }
+
+    private InputSource(FileChannel file, long from, long fileSize, int segmentSize, Charset charset,
+            boolean ownsFile) throws IOException {
+        assert segmentSize > 0;
+        this.file = file;
+        this.ownsFile = ownsFile;
+        this.fileSize = fileSize;
+        this.segmentSize = segmentSize;
+        this.array = null;
+        this.limit = (int) Math.min(segmentSize, fileSize - from);
+        this.buffer = file.map(FileChannel.MapMode.READ_ONLY, from, limit);
+        this.channel = null;
+        this.rewindable = false;
+        this.fed = false;
+        this.charset = charset;
+        this.initialize();
+        this.offset = from;
+        this.checkpoint = this.origin = this.index = from;
+    }
+
+    private InputSource(ReadableByteChannel channel, Charset charset, int windowSize) {
+        assert windowSize > 0;
+        this.array = new byte[windowSize];
+        this.buffer = ByteBuffer.wrap(array);
+        this.limit = 0;
+        this.channel = channel;
+        this.rewindable = false;
+        this.fed = channel == null; // see forFeeding()
+        this.charset = charset;
+        this.initialize();
+    }
+
+    private void initialize() {
         index = 0;
         start = -1;
-        line = 1;
-        prevLineBreak = -1;
-        length = string.length();
-        this.string = string;
+        origin = 0;
+        offset = 0;
+        hold = -1;
+        this.resetLines();
+    }
+
+    /**
+     * Decodes the bytes from (inclusive) to (exclusive) the given indices,
+     * which must not lie before the mark.
+     * 
+     */
+    final String decode(long from, long to) {
+        return this.decode(from, to, false);
+    }
+
+    /**
+     * Decodes the bytes from (inclusive) to (exclusive) the given indices,
+     * which must not lie before the mark. If the caller has seen that all
+     * bytes are ASCII, they are decoded on a fast path.
+     * 
+     */
+    final String decode(long from, long to, boolean ascii) {
+        assert start >= 0 && from >= start && to <= offset + limit;
+        int at = (int) (from - offset);
+        int length = (int) (to - from);
+        byte[] bytes = array;
+        if (bytes == null) {
+            bytes = new byte[length];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(at);
+            slice.get(bytes);
+            at = 0;
+        }
+        if (ascii || charset == LATIN1)
+            return new String(bytes, at, length, LATIN1);
+        if (decoder == null)
+            decoder = charset.newDecoder();
+        try {
+            return decoder.decode(ByteBuffer.wrap(bytes, at, length)).toString();
+        } catch (CharacterCodingException ex) {
+            // not valid in charset, assume legacy ISO-8859-1 content
+            return new String(bytes, at, length, LATIN1);
+        }
+    }
+
+    /**
+     * Reads more bytes into the window, discarding all bytes before the mark
+     * (or before the current index if there is no mark). The window grows if
+     * the retained part does not leave enough space for reading.
+     * 
+     * @return false if the end of input has been reached.
+     */
+    private boolean fill() {
+        if (file != null)
+            return this.remap();
+        if (fed) {
+            if (ended)
+                return false;
+            throw UNDERFLOW;
+        }
+        if (channel == null)
+            return false;
+        this.compact(0);
+        try {
+            int n;
+            do {
+                n = channel.read(ByteBuffer.wrap(array, limit, array.length - limit));
+            } while (n == 0);
+            if (n < 0) {
+                channel.close();
+                channel = null;
+                return false;
+            }
+            limit += n;
+            return true;
+        } catch (IOException ex) {
+            throw Throw.exception(ex);
+        }
+    }
+
+    /**
+     * Appends the remaining bytes of the given buffer to a source for feeding.
+     */
+    void append(ByteBuffer bytes) {
+        assert fed && !ended;
+        this.compact(bytes.remaining());
+        int length = bytes.remaining();
+        bytes.get(array, limit, length);
+        limit += length;
+    }
+
+    /** Signals the end of input to a source for feeding. */
+    void endOfInput() {
+        assert fed;
+        ended = true;
+    }
+
+    /**
+     * Drops the bytes before the mark (or before the held index, if any) from
+     * the window. Grows the window if less than half of it, or less than the
+     * given number of bytes, would be free.
+     * 
+     */
+    private void compact(int free) {
+        long keep = start >= 0 ? start : index;
+        if (hold >= 0 && hold < keep)
+            keep = hold;
+        this.countLines(keep);
+        int retained = (int) (offset + limit - keep);
+        if (retained > array.length / 2 || array.length - retained < free) {
+            byte[] grown = new byte[Math.max(array.length * 2, retained + free)];
+            System.arraycopy(array, (int) (keep - offset), grown, 0, retained);
+            array = grown;
+            buffer = ByteBuffer.wrap(array);
+        } else if (keep > offset) {
+            System.arraycopy(array, (int) (keep - offset), array, 0, retained);
+        }
+        offset = keep;
+        limit = retained;
+    }
+
+    /**
+     * Maps the next segment of the file, starting at the mark (or at the
+     * current index if there is no mark). The segment size is doubled for
+     * tokens that do not fit into a single segment.
+     * 
+     * @return false if the end of input has been reached.
+     */
+    private boolean remap() {
+        if (offset + limit >= fileSize)
+            return false;
+        long keep = start >= 0 ? start : index;
+        this.countLines(keep);
+        while (index - keep >= segmentSize)
+            segmentSize = (int) Math.min(2L * segmentSize, Integer.MAX_VALUE);
+        int size = (int) Math.min(segmentSize, fileSize - keep);
+        try {
+            buffer = file.map(FileChannel.MapMode.READ_ONLY, keep, size);
+        } catch (IOException ex) {
+            throw Throw.exception(ex);
+        }
+        offset = keep;
+        limit = size;
+        return true;
+    }
+
+    /**
+     * Answers the byte at the given index, which must not lie before the mark,
+     * as the char of same value.
+     * 
+     */
+    final char byteAt(long at) {
+        assert start >= 0 && at >= start && at < offset + limit;
+        return (char) (buffer.get((int) (at - offset)) & 0xFF);
+    }
+
+    /**
+     * Counts line breaks up to the given index, which must lie in the window.
+     * Positions before that index cannot be answered afterwards.
+     * 
+     */
+    private void countLines(long to) {
+        for (long at = checkpoint; at < to; at++) {
+            if (buffer.get((int) (at - offset)) == '\n') {
+                prevLineBreak = at;
+                line++;
+            }
+        }
+        checkpoint = to;
     }
 
     public Position getPosition() {
-        return new Position(line, index - prevLineBreak, index);
+        return this.getPosition(index);
+    }
+
+    /**
+     * Answers the position of the given index, which must not lie before the
+     * mark (or before the held index, if any) unless it is still retained.
+     * Line breaks are not tracked while reading, but counted up to the mark
+     * when a position is requested.
+     * 
+     */
+    public Position getPosition(long at) {
+        long keep = hold >= 0 && hold < start ? hold : start;
+        assert at <= index && this.retains(at);
+        if (keep > checkpoint)
+            this.countLines(Math.min(keep, at));
+        int lines = line;
+        long lineBreak = prevLineBreak;
+        for (long each = checkpoint; each < at; each++) {
+            if (buffer.get((int) (each - offset)) == '\n') {
+                lineBreak = each;
+                lines++;
+            }
+        }
+        return new Position(lines, (int) (at - lineBreak), at);
     }
 
     public boolean hasNext() {
@@ -134,12 +643,19 @@ public class InputSource implements Iterator<Character>, Iterable<Character> {
         index++;
     }
 
-    public final void inc2() { // TODO nicer name
-        if (string.charAt(index) == '\n') {
-            prevLineBreak = index;
-            line++;
-        }
-        index++;
+    /**
+     * Same as {@link #inc()}, line breaks are no longer tracked while reading
+     * but counted when a position is requested.
+     * 
+     * @deprecated use {@link #inc()} instead.
+     */
+    @Deprecated
+    public final void inc2() {
+        this.inc();
+    }
+
+    final long index() {
+        return index;
     }
 
     public Iterator<Character> iterator() {
@@ -147,6 +663,116 @@ public class InputSource implements Iterator<Character>, Iterable<Character> {
         return this;
     }
 
+    /**
+     * Closes the file of a mapped source that is read segment by segment. The
+     * file is kept open at the end of input, so that it can still be sliced.
+     * 
+     */
+    public void close() {
+        if (file == null || !ownsFile)
+            return;
+        try {
+            file.close();
+        } catch (IOException ex) {
+            throw Throw.exception(ex);
+        }
+    }
+
+    /**
+     * Answers if the position of the given index can still be answered, ie if
+     * its byte has not been dropped and no later position has been requested.
+     * 
+     */
+    boolean retains(long at) {
+        return at >= offset && at >= checkpoint;
+    }
+
+    /**
+     * Retains the bytes from the given index on, even if the mark moves on, so
+     * that a {@link FeedParser} can restart scanning at that index.
+     * 
+     */
+    void hold(long at) {
+        assert at >= offset;
+        hold = at;
+    }
+
+    /**
+     * Answers if this source can be sliced, ie if it is not a stream. Mapped
+     * files remain random access after they have been read to their end.
+     * 
+     */
+    public boolean isRandomAccess() {
+        return channel == null && (file != null || rewindable);
+    }
+
+    /** Answers the length in bytes of a random access source. */
+    public long length() {
+        assert this.isRandomAccess();
+        return file != null ? fileSize : limit;
+    }
+
+    /**
+     * Answers if the index is at the end of the window, ie if the next peek
+     * reads more input.
+     * 
+     */
+    final boolean atLimit() {
+        return index - offset >= limit;
+    }
+
+    /**
+     * Moves to the next occurrence of the given ASCII character in the window,
+     * or to the end of the window. Answers if any of the skipped bytes is not
+     * ASCII. The window is searched eight bytes at a time, using SWAR (SIMD
+     * within a register) arithmetic on longs: each byte of the xor of a word
+     * and the pattern is zero where the character matches, and zero bytes are
+     * flagged exactly (without borrows across bytes) by the high bit of
+     * <code>~(((x &amp; 0x7F..) + 0x7F..) | x | 0x7F..)</code>.
+     * 
+     */
+    final boolean skipUntil(char ch) {
+        int at = (int) (index - offset);
+        long pattern = 0x0101010101010101L * ch;
+        long bits = 0;
+        for (; at + 8 <= limit; at += 8) {
+            long word = buffer.getLong(at); // big-endian, first byte is highest
+            long x = word ^ pattern;
+            long found = ~(((x & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | x | LOW_SEVEN_BITS);
+            if (found != 0) {
+                int skipped = Long.numberOfLeadingZeros(found) >>> 3;
+                if (skipped > 0)
+                    bits |= word >>> (64 - 8 * skipped);
+                index = offset + at + skipped;
+                return (bits & HIGH_BITS) != 0;
+            }
+            bits |= word;
+        }
+        for (; at < limit; at++) {
+            byte each = buffer.get(at);
+            if (each == ch)
+                break;
+            bits |= each;
+        }
+        index = offset + at;
+        return (bits & HIGH_BITS) != 0;
+    }
+
+    /**
+     * Answers if the bytes from (inclusive) to (exclusive) the given indices
+     * equal the given ASCII string.
+     * 
+     */
+    final boolean matches(long from, long to, String ascii) {
+        if (to - from != ascii.length())
+            return false;
+        for (int n = 0; n < ascii.length(); n++) {
+            if (this.byteAt(from + n) != ascii.charAt(n))
+                return false;
+        }
+        return true;
+    }
+
     public void mark() {
         start = index;
     }
@@ -157,20 +783,91 @@ public class InputSource implements Iterator<Character>, Iterable<Character> {
     }
 
     public final char peek() {
-        return index < length ? string.charAt(index) : EOF;
+        long at = index - offset;
+        if (at < limit)
+            return (char) (buffer.get((int) at) & 0xFF);
+        return this.fill() ? (char) (buffer.get((int) (index - offset)) & 0xFF) : EOF;
     }
 
     public void remove() {
         throw new UnsupportedOperationException();
     }
 
+    /** Moves back to the given index, which must be retained. */
+    void seek(long at) {
+        assert at >= offset && at <= offset + limit;
+        index = at;
+        start = -1;
+    }
+
+    /**
+     * Resets the index to the beginning of input. Only supported by sources
+     * that keep their entire content in memory, ie sources created from a
+     * string, an array or a file.
+     * 
+     * @throws UnsupportedOperationException
+     *             if this is a streaming source.
+     */
     public final void rewind() {
-        index = 0;
+        if (!rewindable)
+            throw new UnsupportedOperationException("Cannot rewind streaming input");
+        index = origin;
         start = -1;
+        this.resetLines();
+    }
+
+    private void resetLines() {
+        checkpoint = origin;
+        line = 1;
+        prevLineBreak = -1;
+    }
+
+    /**
+     * Answers a source that reads the bytes from (inclusive) to (exclusive)
+     * the given indices of this random access source, eg the span of an
+     * element located by an {@link OffsetIndex}. The bytes are shared, not
+     * copied. Positions in the slice are relative to its start.
+     * 
+     */
+    public InputSource slice(long from, long to) {
+        return this.slice(from, to, 1, from - 1);
+    }
+
+    /**
+     * Answers a source that reads the bytes from (inclusive) to (exclusive)
+     * the given indices of this random access source. Indices of the slice are
+     * the same as the indices of this source, and its positions start at the
+     * given line and line break. Slices of mapped files share the channel with
+     * this source, and may be read concurrently.
+     * 
+     */
+    InputSource slice(long from, long to, int line, long prevLineBreak) {
+        assert this.isRandomAccess() && from >= 0 && from <= to && to <= this.length();
+        InputSource slice;
+        if (file != null) {
+            try {
+                slice = new InputSource(file, from, to, segmentSize, charset, false);
+            } catch (IOException ex) {
+                throw Throw.exception(ex);
+            }
+        } else {
+            ByteBuffer view = buffer.duplicate();
+            view.limit((int) to);
+            slice = new InputSource(view, charset);
+            slice.origin = slice.index = from;
+        }
+        slice.checkpoint = from;
+        slice.line = line;
+        slice.prevLineBreak = prevLineBreak;
+        return slice;
+    }
+
+    private void skipPreamble(int length) {
+        checkpoint = origin = index = length;
     }
 
     public final CharSequence yank() {
-        return string.subSequence(start, index);
+        return this.decode(start, index);
     }
 
 }
@@ -0,0 +1,282 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.Repository;
+import ch.akuhn.fame.fm3.MetaDescription;
+
+/**
+ * Imports the elements of a random access source lazily. All elements with a
+ * serial are created up front, but empty, using an {@link OffsetIndex} of the
+ * source. The attributes of an element are parsed from its span in the source
+ * when {@link #load(Object)} is called. Loaders opened by
+ * {@link Repository#importMSEFileLazily(String)} are kept by their repository,
+ * which loads an element the first time one of its properties is read through
+ * the repository, eg by {@link Repository#read(String, Object)}, and all
+ * elements before they are exported. Getters that are called directly do not
+ * load an element.
+ * <p>
+ * Nested elements are loaded together with their container, nested elements
+ * without serial are added to the model when they are loaded. Top-level elements without
+ * serial are not imported. Attributes that are stored with the opposite
+ * element only are known once the opposite element is loaded.
+ * <p>
+ * Loaders keep their source open until they are closed or all elements are
+ * loaded. If the offset index is built when opening a file, it is written to
+ * the sidecar of the file, so that the next open need not scan the file.
+ * 
+ * @author akuhn
+ * 
+ */
+@SuppressWarnings("unchecked")
+public class LazyLoader {
+
+    /** Parses the span of an element into existing elements. */
+    private class Load extends AbstractParserClient {
+
+        private final FrameStack frames = new FrameStack();
+        private int skip = 0; // depth of an element that is loaded already, or 0
+        private List<Object> created = new ArrayList<Object>(); // elements without serial
+
+        @Override
+        public void beginAttribute(String name) {
+            if (skip == 0)
+                frames.beginAttribute(symbols, name);
+        }
+
+        @Override
+        public void beginElement(String name) {
+            frames.push(skip > 0 ? null : plans.planOf(name), null);
+        }
+
+        @Override
+        public void endAttribute(String name) {
+            if (skip > 0)
+                return;
+            int top = frames.depth - 1;
+            frames.properties[top].writeAll(this.getElement(top), frames.values[top]);
+            frames.endAttribute();
+        }
+
+        @Override
+        public void endElement(String name) {
+            int depth = frames.depth - 1;
+            if (skip > depth + 1) {
+                frames.pop();
+                return;
+            }
+            if (skip == depth + 1)
+                skip = 0;
+            this.getElement(depth);
+            Object element = frames.pop();
+            if (depth > 0)
+                frames.add(element);
+        }
+
+        private Object getElement(int frame) {
+            if (frames.elements[frame] == null) {
+                frames.elements[frame] = frames.plans[frame].newInstance();
+                created.add(frames.elements[frame]);
+            }
+            return frames.elements[frame];
+        }
+
+        @Override
+        public void primitive(Object value) {
+            if (skip == 0)
+                frames.add(value);
+        }
+
+        @Override
+        public void reference(int serial) {
+            if (skip > 0)
+                return;
+            int entry = index.find(serial);
+            assert entry >= 0 : "Dangling reference to " + serial;
+            frames.add(elements[entry]);
+        }
+
+        @Override
+        public void reference(String name) {
+            if (skip > 0)
+                return;
+            MetaDescription type = MetaDescription.primitiveNamed(name);
+            assert type != null : name;
+            frames.add(type);
+        }
+
+        @Override
+        public void serial(int serial) {
+            if (skip > 0)
+                return;
+            int entry = index.find(serial);
+            int depth = frames.depth;
+            frames.elements[depth - 1] = elements[entry];
+            if (depth > 1 && !loaded.get(entry))
+                LazyLoader.this.markLoaded(entry);
+            else if (depth > 1)
+                skip = depth;
+        }
+
+    }
+
+    /**
+     * Opens the given file lazily, using its sidecar offset index if that is
+     * up to date, see {@link OffsetIndex#sidecarOf(File)}.
+     * 
+     */
+    public static LazyLoader open(Repository model, File file) {
+        return open(model, file, InputSource.SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the given file lazily, mapping files larger than the given segment
+     * size one segment after the other. The offset index is built from a
+     * source of its own, which is closed once the file has been scanned.
+     * 
+     */
+    public static LazyLoader open(Repository model, File file, int segmentSize) {
+        File sidecar = OffsetIndex.sidecarOf(file);
+        OffsetIndex index;
+        if (sidecar.lastModified() >= file.lastModified()) {
+            index = OffsetIndex.read(sidecar);
+        } else {
+            InputSource scan = InputSource.fromFile(file, segmentSize);
+            try {
+                index = OffsetIndex.build(scan);
+            } finally {
+                scan.close();
+            }
+            index.write(sidecar);
+        }
+        return new LazyLoader(model, InputSource.fromFile(file, segmentSize), index);
+    }
+
+    private final Repository model;
+    private final InputSource in;
+    private final OffsetIndex index;
+    private final SymbolTable symbols;
+    private final ImportPlan.Table plans;
+    private final Object[] elements; // by entry of index
+    private final int[] table; // open addressing by identity, holds entry + 1 or 0 if empty
+    private final BitSet loaded;
+    private int remaining;
+    private boolean open;
+
+    /**
+     * Creates the elements of the given index empty, and adds them to the
+     * given model. The source must be random access, and be the indexed one.
+     * 
+     */
+    public LazyLoader(Repository model, InputSource in, OffsetIndex index) {
+        if (!in.isRandomAccess())
+            throw new IllegalArgumentException("Not a random access source");
+        MetaRepository metamodel = model.getMetamodel();
+        this.model = model;
+        this.in = in;
+        this.index = index;
+        this.symbols = new SymbolTable(metamodel);
+        this.plans = new ImportPlan.Table(metamodel, symbols);
+        this.elements = new Object[index.size()];
+        this.loaded = new BitSet(index.size());
+        this.remaining = index.size();
+        ImportPlan[] types = new ImportPlan[index.typeCount()];
+        for (int n = 0; n < types.length; n++)
+            types[n] = plans.planOf(index.typeName(n));
+        for (int n = 0; n < elements.length; n++)
+            elements[n] = types[index.typeAt(n)].newInstance();
+        int capacity = Integer.highestOneBit(Math.max(elements.length, 1)) * 4;
+        this.table = new int[capacity];
+        for (int n = 0; n < elements.length; n++) {
+            int slot = this.slotOf(elements[n]);
+            table[slot] = n + 1;
+        }
+        model.registerAll(Arrays.asList(elements));
+        this.open = true;
+        if (remaining == 0)
+            this.close();
+    }
+
+    /** Stops loading, elements not loaded yet remain empty. */
+    public synchronized void close() {
+        if (!open)
+            return;
+        open = false;
+        in.close();
+    }
+
+    /** Answers if the loader is neither closed nor done loading. */
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    public synchronized boolean isLoaded(Object element) {
+        int entry = table[this.slotOf(element)] - 1;
+        return entry < 0 || loaded.get(entry);
+    }
+
+    /**
+     * Loads the attributes of the given element, if it has been imported by
+     * this loader and is not loaded yet.
+     * 
+     */
+    public synchronized void load(Object element) {
+        int entry = table[this.slotOf(element)] - 1;
+        if (entry < 0 || loaded.get(entry) || !open)
+            return;
+        this.markLoaded(entry);
+        long offset = index.offsetOf(index.serialAt(entry));
+        long length = index.lengthOf(index.serialAt(entry));
+        Load client = new Load();
+        new Parser(new Scanner(in.slice(offset, offset + length), symbols)).acceptElements(client);
+        model.registerAll(client.created);
+        if (remaining == 0)
+            this.close();
+    }
+
+    /** Loads all elements not loaded yet. */
+    public synchronized void loadAll() {
+        for (int n = 0; n < elements.length && open; n++)
+            this.load(elements[n]);
+    }
+
+    private void markLoaded(int entry) {
+        loaded.set(entry);
+        remaining--;
+    }
+
+    /** Answers the slot of the given element, or the empty slot to put it. */
+    private int slotOf(Object element) {
+        int mask = table.length - 1;
+        int h = System.identityHashCode(element);
+        for (int slot = (h ^ (h >>> 16)) & mask;; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0 || elements[entry - 1] == element)
+                return slot;
+        }
+    }
+
+}
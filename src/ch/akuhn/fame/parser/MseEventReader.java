@@ -0,0 +1,525 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import static ch.akuhn.fame.parser.TokenType.BOOLEAN;
+import static ch.akuhn.fame.parser.TokenType.CLOSE;
+import static ch.akuhn.fame.parser.TokenType.EOF;
+import static ch.akuhn.fame.parser.TokenType.ID;
+import static ch.akuhn.fame.parser.TokenType.KEYWORD;
+import static ch.akuhn.fame.parser.TokenType.NAME;
+import static ch.akuhn.fame.parser.TokenType.NUMBER;
+import static ch.akuhn.fame.parser.TokenType.OPEN;
+import static ch.akuhn.fame.parser.TokenType.REF;
+import static ch.akuhn.fame.parser.TokenType.STRING;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull-based MSE parser. Unlike {@link Parser}, which calls its client for
+ * each event, the reader answers one event per call of {@link #next()}, so
+ * clients may pause parsing, or read several documents in lock-step. The
+ * events are the same as those of {@link ParseClient}, their names and values
+ * are answered by the accessors of the reader, eg
+ * 
+ * <pre>
+ * MseEventReader reader = new MseEventReader(input);
+ * while (reader.hasNext()) {
+ *     if (reader.next() == EventType.BEGIN_ELEMENT)
+ *         System.out.println(reader.getName());
+ * }
+ * </pre>
+ * 
+ * The reader accepts the same grammar as {@link Parser}, and reports the same
+ * errors. It is implemented with an explicit stack of open nodes, hence uses
+ * constant memory except for the nesting of nodes.
+ * 
+ * @author akuhn
+ * 
+ */
+public class MseEventReader {
+
+    // states, for each open node
+    private static final byte START = 0;
+    private static final byte PROLOGUE = 1;
+    private static final byte DOCUMENT = 2;
+    private static final byte EMPTY = 3;
+    private static final byte ELEMENT = 4;
+    private static final byte FIRST = 5; // element, before its first attribute
+    private static final byte ATTRIBUTE = 6;
+    private static final byte DONE = 7;
+    private static final byte ELEMENTS = 8; // top-level elements, up to EOF
+
+    private TokenType peek;
+    private Scanner stream;
+
+    private byte[] states;
+    private String[] names;
+    private int depth;
+
+    private EventType event;
+    private String name;
+    private Object value;
+    private int index;
+    private String[] parameters;
+
+    private boolean skipValues; // see skipValues()
+    private ImportFilter filter; // see setFilter()
+    private ImportFilter.SkipClient skipClient; // or null
+    private long lastTokenEnd; // end of the most recently consumed token
+
+    private int savedDepth; // see save()
+    private byte savedState;
+    private long savedToken;
+
+    private EventType pending; // looked-ahead event, if any
+    private String pendingName;
+    private Object pendingValue;
+    private int pendingIndex;
+    private String[] pendingParameters;
+
+    public MseEventReader(InputSource in) {
+        this(new Scanner(in));
+    }
+
+    public MseEventReader(Scanner stream) {
+        this.stream = stream;
+        this.states = new byte[16];
+        this.names = new String[16];
+        this.depth = 0;
+        this.states[0] = START;
+        this.consume();
+    }
+
+    private void consume() {
+        lastTokenEnd = stream.tokenEnd();
+        peek = stream.advance();
+    }
+
+    private void consume(TokenType type) {
+        if (peek != type)
+            throw this.expected(type);
+        this.consume();
+    }
+
+    /** Parses the rest of a directive, after its opening parenthesis. */
+    private EventType directive() {
+        pendingName = stream.stringValue();
+        this.consume(KEYWORD);
+        List<String> list = new ArrayList<String>();
+        while (peek == STRING || peek == BOOLEAN || peek == NUMBER || peek == KEYWORD || peek == NAME) {
+            list.add(stream.stringValue());
+            this.consume();
+        }
+        this.consume(CLOSE);
+        pendingParameters = list.toArray(new String[list.size()]);
+        return EventType.DIRECTIVE;
+    }
+
+    /**
+     * Parses the name of an element node, after its opening parenthesis at
+     * the given index. Answers null if the element is skipped.
+     * 
+     */
+    private EventType beginElement(long open) {
+        if (peek != NAME)
+            throw this.unexpectedOpen(open);
+        pendingName = stream.stringValue();
+        this.consume();
+        if (filter != null && !filter.acceptsElement(pendingName))
+            return this.skipNode();
+        this.push(FIRST, pendingName);
+        return EventType.BEGIN_ELEMENT;
+    }
+
+    private ParseError expected(TokenType type) {
+        return new ParseError(type, stream.token(), stream.tokenPosition());
+    }
+
+    /**
+     * Answers the error for an opening parenthesis, at the given index, that
+     * starts no node which may follow. As with a recursive descent parser,
+     * the parenthesis is reported where a closing one was expected.
+     * 
+     */
+    private ParseError unexpectedOpen(long open) {
+        return new ParseError(CLOSE, new Token(OPEN, "("), stream.positionOf(open));
+    }
+
+    /** Calls the callback of the given client for the current event. */
+    void fire(EventType type, ParseClient client) {
+        switch (type) {
+        case BEGIN_ATTRIBUTE:
+            client.beginAttribute(name);
+            break;
+        case BEGIN_DOCUMENT:
+            client.beginDocument();
+            break;
+        case BEGIN_ELEMENT:
+            client.beginElement(name);
+            break;
+        case DIRECTIVE:
+            client.directive(name, parameters);
+            break;
+        case END_ATTRIBUTE:
+            client.endAttribute(name);
+            break;
+        case END_DOCUMENT:
+            client.endDocument();
+            break;
+        case END_ELEMENT:
+            client.endElement(name);
+            break;
+        case NAMED_REFERENCE:
+            client.reference(name);
+            break;
+        case PRIMITIVE:
+            client.primitive(value);
+            break;
+        case REFERENCE:
+            client.reference(index);
+            break;
+        case SERIAL:
+            client.serial(index);
+            break;
+        }
+    }
+
+    /** Answers the type of the current event. */
+    public EventType getEventType() {
+        return event;
+    }
+
+    /** Answers the serial or referenced serial of the current event. */
+    public int getIndex() {
+        assert event == EventType.SERIAL || event == EventType.REFERENCE;
+        return index;
+    }
+
+    /**
+     * Answers the name of the current element, attribute, named reference or
+     * directive.
+     * 
+     */
+    public String getName() {
+        return name;
+    }
+
+    /** Answers the parameters of the current directive. */
+    public String[] getParameters() {
+        assert event == EventType.DIRECTIVE;
+        return parameters;
+    }
+
+    /** Answers the value of the current primitive. */
+    public Object getValue() {
+        assert event == EventType.PRIMITIVE;
+        return value;
+    }
+
+    public boolean hasNext() {
+        if (states[depth] == ELEMENTS && filter != null) {
+            while (pending == null && peek == OPEN)
+                pending = this.scanNode(); // null if skipped
+        }
+        if (pending != null)
+            return true;
+        if (states[depth] == ELEMENTS && peek != OPEN) {
+            this.consume(EOF);
+            states[depth] = DONE;
+        }
+        return states[depth] != DONE;
+    }
+
+    /**
+     * Answers if the reader is inside the document, before its first element
+     * or closing parenthesis. The current token of the scanner is the first
+     * token inside the document then.
+     * 
+     */
+    boolean isAtFirstElement() {
+        return pending == null && depth == 0 && states[0] == DOCUMENT;
+    }
+
+    /**
+     * Reads a sequence of element nodes up to the end of input, rather than a
+     * document.
+     * 
+     */
+    void readElements() {
+        assert depth == 0 && states[0] == START;
+        states[0] = ELEMENTS;
+    }
+
+    /**
+     * Reads the remaining element nodes and the closing parenthesis of a
+     * document, rather than a document.
+     * 
+     */
+    void readRestOfDocument() {
+        assert depth == 0 && states[0] == START;
+        states[0] = DOCUMENT;
+    }
+
+    /** Moves to the next event, and answers its type. */
+    public EventType next() {
+        if (pending == null)
+            pending = this.scan();
+        event = pending;
+        name = pendingName;
+        value = pendingValue;
+        index = pendingIndex;
+        parameters = pendingParameters;
+        pending = null;
+        return event;
+    }
+
+    /**
+     * Answers the index after the last token of the current event, eg after the
+     * closing parenthesis of an element.
+     * 
+     */
+    long lastTokenEnd() {
+        assert pending == null;
+        return lastTokenEnd;
+    }
+
+    /** Answers the type of the next event, without moving to it. */
+    public EventType peek() {
+        if (pending == null)
+            pending = this.scan();
+        return pending;
+    }
+
+    /**
+     * Skips all element and attribute nodes that are not selected by the given
+     * filter, without scanning their tokens, see {@link Scanner#skipNode(ImportFilter.SkipClient)}.
+     * No events are answered for skipped nodes.
+     * 
+     */
+    void setFilter(ImportFilter filter) {
+        this.filter = filter;
+    }
+
+    /** Tells the serials of skipped elements to the given client, if any. */
+    void setSkipClient(ImportFilter.SkipClient client) {
+        this.skipClient = client;
+    }
+
+    /**
+     * Skips the rest of the current node, after its name, and answers null.
+     */
+    private EventType skipNode() {
+        stream.skipNode(skipClient);
+        peek = CLOSE;
+        this.consume();
+        return null;
+    }
+
+    /**
+     * Answers null as value of all primitives, rather than materializing them.
+     * Names are still answered, they are resolved by the symbol table of the
+     * scanner without creating strings. Used by {@link Validator} and
+     * {@link OffsetIndex}.
+     * 
+     */
+    void skipValues() {
+        skipValues = true;
+    }
+
+    /**
+     * Restores the state saved by {@link #save()}, and scans the current
+     * token again. Scanning an event changes the state of the current node,
+     * and pushes or pops at most one node, hence saving the depth and state of
+     * the current node is enough.
+     * 
+     */
+    void restore() {
+        depth = savedDepth;
+        states[depth] = savedState;
+        pending = null;
+        peek = stream.rescan(savedToken);
+    }
+
+    /**
+     * Saves the state before scanning the next event, and retains the input
+     * from the current token on, see {@link FeedParser}.
+     * 
+     */
+    void save() {
+        assert pending == null;
+        savedDepth = depth;
+        savedState = states[depth];
+        savedToken = stream.tokenStart();
+        stream.in.hold(savedToken);
+    }
+
+    private void push(byte state, String nodeName) {
+        if (++depth == states.length) {
+            states = Arrays.copyOf(states, depth * 2);
+            names = Arrays.copyOf(names, depth * 2);
+        }
+        states[depth] = state;
+        names[depth] = nodeName;
+    }
+
+    /** Parses the rest of a reference node, after its opening parenthesis. */
+    private EventType reference() {
+        this.consume(REF);
+        EventType type;
+        if (peek == NAME) {
+            pendingName = stream.stringValue();
+            this.consume();
+            type = EventType.NAMED_REFERENCE;
+        } else if (peek == NUMBER) {
+            pendingIndex = this.serialValue();
+            this.consume();
+            type = EventType.REFERENCE;
+        } else {
+            throw this.expected(NUMBER);
+        }
+        this.consume(CLOSE);
+        return type;
+    }
+
+    /** Parses the tokens of the next event, answers its type. */
+    private EventType scan() {
+        EventType type;
+        do {
+            type = this.scanNode();
+        } while (type == null); // skipped by filter
+        return type;
+    }
+
+    /**
+     * Parses the tokens of the next event, answers its type, or null if a node
+     * has been skipped.
+     * 
+     */
+    private EventType scanNode() {
+        long open; // index of the opening parenthesis of the node
+        pendingName = null;
+        pendingValue = null;
+        pendingParameters = null;
+        switch (states[depth]) {
+        case START:
+            if (peek == OPEN) {
+                this.consume();
+                states[depth] = PROLOGUE;
+                return this.scanNode();
+            }
+            this.consume(EOF);
+            states[depth] = EMPTY;
+            return EventType.BEGIN_DOCUMENT;
+        case PROLOGUE:
+            if (peek == KEYWORD) {
+                EventType type = this.directive();
+                this.consume(OPEN);
+                return type;
+            }
+            states[depth] = DOCUMENT;
+            return EventType.BEGIN_DOCUMENT;
+        case EMPTY:
+            states[depth] = DONE;
+            return EventType.END_DOCUMENT;
+        case ELEMENTS:
+            open = stream.tokenStart();
+            this.consume(OPEN);
+            return this.beginElement(open);
+        case DOCUMENT:
+            if (peek == OPEN) {
+                open = stream.tokenStart();
+                this.consume();
+                return this.beginElement(open);
+            }
+            this.consume(CLOSE);
+            this.consume(EOF);
+            states[depth] = DONE;
+            return EventType.END_DOCUMENT;
+        case FIRST:
+        case ELEMENT:
+            if (peek == OPEN) {
+                open = stream.tokenStart();
+                this.consume();
+                if (states[depth] == FIRST && peek == ID) {
+                    states[depth] = ELEMENT;
+                    return this.serial();
+                }
+                states[depth] = ELEMENT;
+                if (peek != NAME && peek != KEYWORD)
+                    throw this.unexpectedOpen(open);
+                pendingName = stream.stringValue();
+                this.consume();
+                if (filter != null && !filter.acceptsAttribute(names[depth], pendingName))
+                    return this.skipNode();
+                this.push(ATTRIBUTE, pendingName);
+                return EventType.BEGIN_ATTRIBUTE;
+            }
+            this.consume(CLOSE);
+            pendingName = names[depth--];
+            return EventType.END_ELEMENT;
+        case ATTRIBUTE:
+            if (peek == STRING || peek == NUMBER || peek == BOOLEAN) {
+                pendingValue = skipValues ? null : stream.value();
+                this.consume();
+                return EventType.PRIMITIVE;
+            }
+            if (peek == OPEN) {
+                open = stream.tokenStart();
+                this.consume();
+                if (peek == NAME)
+                    return this.beginElement(open);
+                if (peek == REF)
+                    return this.reference();
+                if (peek == KEYWORD)
+                    throw new ParseError("Unknown selector #" + stream.stringValue(), stream.tokenPosition());
+                throw this.unexpectedOpen(open);
+            }
+            if (peek == NAME) // nice error message if quotes are missing
+                throw this.expected(STRING);
+            this.consume(CLOSE);
+            pendingName = names[depth--];
+            return EventType.END_ATTRIBUTE;
+        default:
+            throw new NoSuchElementException();
+        }
+    }
+
+    /** Answers the current number as serial, which must be in range of int. */
+    private int serialValue() {
+        if (!stream.isInt())
+            throw new ParseError("Serial out of range", stream.tokenPosition());
+        return stream.intValue();
+    }
+
+    /** Parses the rest of a serial node, after its opening parenthesis. */
+    private EventType serial() {
+        this.consume(ID);
+        if (peek != NUMBER)
+            throw this.expected(NUMBER);
+        pendingIndex = this.serialValue();
+        this.consume();
+        this.consume(CLOSE);
+        return EventType.SERIAL;
+    }
+
+}
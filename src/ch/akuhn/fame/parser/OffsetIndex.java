@@ -0,0 +1,339 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import ch.akuhn.util.Throw;
+
+/**
+ * Index of the byte offsets of all elements with a serial in an MSE file,
+ * for random access by serial or by type. The index is built in one pass that
+ * does not materialize values, and is stored as a compact sidecar file next
+ * to the MSE file. A single element is then parsed from its span in the file,
+ * eg
+ * 
+ * <pre>
+ * OffsetIndex index = OffsetIndex.read(OffsetIndex.sidecarOf(file));
+ * InputSource input = InputSource.fromFile(file);
+ * for (int serial : index.serialsOf(&quot;FAMIX.Class&quot;))
+ *     index.accept(input, serial, client);
+ * </pre>
+ * 
+ * Spans include nested elements. The sidecar holds the names of all types,
+ * followed by serial, offset, length and type of each element sorted by
+ * serial, followed by a posting list of serials for each type.
+ * 
+ * @author akuhn
+ * 
+ */
+public class OffsetIndex {
+
+    private static final int MAGIC = 0x4D534549; // "MSEI"
+    private static final int VERSION = 2;
+
+    /**
+     * Indexes the elements of the given document, in one pass.
+     */
+    public static OffsetIndex build(InputSource in) {
+        Scanner stream = new Scanner(in);
+        MseEventReader reader = new MseEventReader(stream);
+        reader.skipValues();
+        SymbolTable symbols = stream.getSymbols();
+        OffsetIndex index = new OffsetIndex();
+        int[] typeOfSymbol = new int[64];
+        long[] starts = new long[16];
+        int[] serials = new int[16];
+        boolean[] hasSerial = new boolean[16];
+        int depth = 0;
+        while (reader.hasNext()) {
+            long start = stream.tokenStart();
+            switch (reader.next()) {
+            case BEGIN_ELEMENT:
+                if (depth == starts.length) {
+                    starts = Arrays.copyOf(starts, depth * 2);
+                    serials = Arrays.copyOf(serials, depth * 2);
+                    hasSerial = Arrays.copyOf(hasSerial, depth * 2);
+                }
+                starts[depth] = start;
+                hasSerial[depth] = false;
+                depth++;
+                break;
+            case SERIAL:
+                serials[depth - 1] = reader.getIndex();
+                hasSerial[depth - 1] = true;
+                break;
+            case END_ELEMENT:
+                depth--;
+                if (!hasSerial[depth])
+                    break;
+                int symbol = symbols.idOf(reader.getName());
+                if (symbol >= typeOfSymbol.length)
+                    typeOfSymbol = Arrays.copyOf(typeOfSymbol,
+                            Math.max(symbol + 1, typeOfSymbol.length * 2));
+                if (typeOfSymbol[symbol] == 0)
+                    typeOfSymbol[symbol] = index.addType(reader.getName()) + 1;
+                long begin = starts[depth];
+                index.add(serials[depth], begin,
+                        reader.lastTokenEnd() - begin,
+                        typeOfSymbol[symbol] - 1);
+                break;
+            default:
+                break;
+            }
+        }
+        index.sort();
+        return index;
+    }
+
+    /** Reads the index from the given sidecar file. */
+    public static OffsetIndex read(File sidecar) {
+        try {
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(sidecar),
+                            1 << 16));
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                    throw new IOException("Not an MSE offset index: "
+                            + sidecar);
+                OffsetIndex index = new OffsetIndex();
+                int types = input.readInt();
+                for (int n = 0; n < types; n++)
+                    index.addType(input.readUTF());
+                int size = input.readInt();
+                index.grow(size);
+                for (int n = 0; n < size; n++)
+                    index.add(input.readInt(), input.readLong(),
+                            input.readLong(), input.readInt());
+                index.postings = new int[types][];
+                for (int n = 0; n < types; n++) {
+                    int[] posting = new int[input.readInt()];
+                    for (int k = 0; k < posting.length; k++)
+                        posting[k] = input.readInt();
+                    index.postings[n] = posting;
+                }
+                return index;
+            } finally {
+                input.close();
+            }
+        } catch (IOException ex) {
+            throw Throw.exception(ex);
+        }
+    }
+
+    /** Answers the sidecar file of the given MSE file. */
+    public static File sidecarOf(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    private String[] typeNames;
+    private int typeCount;
+    private int[] serials; // sorted, after sort()
+    private long[] offsets;
+    private long[] lengths;
+    private int[] types;
+    private int size;
+    private int[][] postings; // serials of each type, in ascending order
+
+    private OffsetIndex() {
+        this.typeNames = new String[16];
+        this.grow(1024);
+    }
+
+    /**
+     * Parses the element with the given serial from its span in the given
+     * random access source, which must be the indexed document. Sends element
+     * events only, no document events.
+     * 
+     */
+    public void accept(InputSource in, int serial, ParseClient client) {
+        if (!in.isRandomAccess())
+            throw new IllegalArgumentException("Not a random access source");
+        int n = this.indexOf(serial);
+        InputSource slice = in.slice(offsets[n], offsets[n] + lengths[n]);
+        new Parser(new Scanner(slice)).acceptElements(client);
+    }
+
+    private void add(int serial, long offset, long length, int type) {
+        if (size == serials.length)
+            this.grow(size * 2);
+        serials[size] = serial;
+        offsets[size] = offset;
+        lengths[size] = length;
+        types[size] = type;
+        size++;
+    }
+
+    private int addType(String name) {
+        if (typeCount == typeNames.length)
+            typeNames = Arrays.copyOf(typeNames, typeCount * 2);
+        typeNames[typeCount] = name;
+        return typeCount++;
+    }
+
+    public boolean contains(int serial) {
+        return this.find(serial) >= 0;
+    }
+
+    /** Answers the entry of the given serial, or -1 if there is none. */
+    int find(int serial) {
+        int n = Arrays.binarySearch(serials, 0, size, serial);
+        return n < 0 ? -1 : n;
+    }
+
+    private void grow(int capacity) {
+        serials = serials == null ? new int[capacity]
+                : Arrays.copyOf(serials, capacity);
+        offsets = offsets == null ? new long[capacity]
+                : Arrays.copyOf(offsets, capacity);
+        lengths = lengths == null ? new long[capacity]
+                : Arrays.copyOf(lengths, capacity);
+        types = types == null ? new int[capacity]
+                : Arrays.copyOf(types, capacity);
+    }
+
+    /** Answers the length in bytes of the element with the given serial. */
+    public long lengthOf(int serial) {
+        return lengths[this.indexOf(serial)];
+    }
+
+    private int indexOf(int serial) {
+        int n = this.find(serial);
+        if (n < 0)
+            throw new IllegalArgumentException("No element with serial "
+                    + serial);
+        return n;
+    }
+
+    /** Answers the offset of the element with the given serial. */
+    public long offsetOf(int serial) {
+        return offsets[this.indexOf(serial)];
+    }
+
+    /**
+     * Answers the serials of all elements of the given type, in ascending
+     * order.
+     */
+    public int[] serialsOf(String type) {
+        for (int n = 0; n < typeCount; n++) {
+            if (typeNames[n].equals(type))
+                return postings[n].clone();
+        }
+        return new int[0];
+    }
+
+    /** Answers the serial of the given entry, entries are sorted by serial. */
+    int serialAt(int entry) {
+        return serials[entry];
+    }
+
+    /** Answers the type id of the given entry, see {@link #typeName(int)}. */
+    int typeAt(int entry) {
+        return types[entry];
+    }
+
+    int typeCount() {
+        return typeCount;
+    }
+
+    String typeName(int type) {
+        return typeNames[type];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Sorts the entries by serial, and creates the posting lists. */
+    private void sort() {
+        long[] keys = new long[size]; // serial in high bits, entry in low bits
+        for (int n = 0; n < size; n++)
+            keys[n] = (long) serials[n] << 32 | n;
+        Arrays.sort(keys);
+        int[] sortedSerials = new int[size];
+        long[] sortedOffsets = new long[size];
+        long[] sortedLengths = new long[size];
+        int[] sortedTypes = new int[size];
+        int[] counts = new int[typeCount];
+        for (int n = 0; n < size; n++) {
+            int each = (int) keys[n];
+            sortedSerials[n] = serials[each];
+            sortedOffsets[n] = offsets[each];
+            sortedLengths[n] = lengths[each];
+            sortedTypes[n] = types[each];
+            counts[types[each]]++;
+        }
+        serials = sortedSerials;
+        offsets = sortedOffsets;
+        lengths = sortedLengths;
+        types = sortedTypes;
+        postings = new int[typeCount][];
+        for (int n = 0; n < typeCount; n++)
+            postings[n] = new int[counts[n]];
+        Arrays.fill(counts, 0);
+        for (int n = 0; n < size; n++)
+            postings[types[n]][counts[types[n]]++] = serials[n];
+    }
+
+    /** Answers the type of the element with the given serial. */
+    public String typeOf(int serial) {
+        return typeNames[types[this.indexOf(serial)]];
+    }
+
+    /** Writes the index to the given sidecar file. */
+    public void write(File sidecar) {
+        try {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(sidecar),
+                            1 << 16));
+            try {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(typeCount);
+                for (int n = 0; n < typeCount; n++)
+                    output.writeUTF(typeNames[n]);
+                output.writeInt(size);
+                for (int n = 0; n < size; n++) {
+                    output.writeInt(serials[n]);
+                    output.writeLong(offsets[n]);
+                    output.writeLong(lengths[n]);
+                    output.writeInt(types[n]);
+                }
+                for (int n = 0; n < typeCount; n++) {
+                    output.writeInt(postings[n].length);
+                    for (int each : postings[n])
+                        output.writeInt(each);
+                }
+            } finally {
+                output.close();
+            }
+        } catch (IOException ex) {
+            throw Throw.exception(ex);
+        }
+    }
+
+}
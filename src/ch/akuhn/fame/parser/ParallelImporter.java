@@ -0,0 +1,155 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.Repository;
+
+/**
+ * Reads MSE document on multiple threads, in two phases. First, the document
+ * is split by a {@link ParallelParser} and each chunk is parsed into an
+ * {@link ImportBatch} of its own, which creates the elements of the chunk and
+ * writes their attributes, except those that refer to serials. Second, once
+ * all serials are known, the batches resolve their references and write the
+ * remaining attributes in parallel, each batch writing its own elements.
+ * Attributes with an opposite update the elements they refer to, and are
+ * hence written on the calling thread, in document order. Finally, all
+ * elements are added to the model.
+ * <p>
+ * Setters of the model are hence called on worker threads, and attributes
+ * without opposite are not written in document order. Models that depend on
+ * either should be read with an {@link Importer}.
+ * <p>
+ * Streams and small documents are parsed serially, but linked in the same
+ * way. As with {@link Importer}, dangling references fail an assertion.
+ * 
+ * @author akuhn
+ * 
+ */
+public class ParallelImporter {
+
+    private final MetaRepository metamodel;
+    private final Repository model;
+    private final SymbolTable symbols;
+    private ExecutorService executor;
+    private int parallelism;
+    private int chunkSize;
+
+    public ParallelImporter(MetaRepository metamodel) {
+        this(metamodel, new Repository(metamodel));
+    }
+
+    public ParallelImporter(MetaRepository metamodel, Repository model) {
+        this.metamodel = metamodel;
+        this.model = model;
+        this.symbols = new SymbolTable(metamodel);
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.chunkSize = ParallelParser.CHUNK_SIZE;
+    }
+
+    public Repository getResult() {
+        return model;
+    }
+
+    private void link(List<ImportBatch> batches) {
+        final SerialTable table = new SerialTable(); // read-only while linking
+        Object[] elements = new Object[1024]; // by entry
+        for (ImportBatch each : batches)
+            elements = each.serials(table, elements);
+        final Object[] serialElements = elements;
+        if (parallelism < 2 || batches.size() < 3) {
+            for (ImportBatch each : batches)
+                each.link(table, serialElements);
+            this.linkOpposites(batches);
+            return;
+        }
+        ExecutorService pool = executor == null ? ParallelParser.sharedExecutor() : executor;
+        List<Future<ImportBatch>> tasks = new ArrayList<Future<ImportBatch>>();
+        try {
+            for (final ImportBatch each : batches) {
+                tasks.add(pool.submit(new Callable<ImportBatch>() {
+                    public ImportBatch call() {
+                        each.link(table, serialElements);
+                        return each;
+                    }
+                }));
+            }
+            for (Future<ImportBatch> each : tasks)
+                ParallelParser.get(each);
+        } finally {
+            for (Future<ImportBatch> each : tasks)
+                each.cancel(true);
+        }
+        this.linkOpposites(batches);
+    }
+
+    private void linkOpposites(List<ImportBatch> batches) {
+        int dangling = 0;
+        for (ImportBatch each : batches) {
+            each.linkOpposites();
+            dangling += each.danglingReferences();
+        }
+        assert dangling == 0 : dangling + " dangling references";
+        for (ImportBatch each : batches)
+            model.registerAll(each.elements());
+    }
+
+    public void readFrom(InputSource in) {
+        final List<ImportBatch> batches = new ArrayList<ImportBatch>();
+        ImportBatch document = new ImportBatch(metamodel, symbols);
+        ParallelParser parser = new ParallelParser(in, symbols);
+        parser.setExecutor(executor, parallelism);
+        parser.setChunkSize(chunkSize);
+        parser.accept(document, new ParallelParser.ChunkClients<ImportBatch>() {
+            @Override
+            public ImportBatch create(SymbolTable local) {
+                return new ImportBatch(metamodel, local);
+            }
+
+            @Override
+            public void done(ImportBatch batch) {
+                batches.add(batch);
+            }
+        });
+        batches.add(document);
+        this.link(batches);
+    }
+
+    /** Sets the minimal size in bytes of chunks. */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sets the executor of both phases, by default a pool is used that is
+     * shared by all parsers and importers.
+     * 
+     */
+    public void setExecutor(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+}
@@ -0,0 +1,350 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import ch.akuhn.util.Throw;
+
+/**
+ * MSE parser that parses the top-level element nodes of a document on
+ * multiple threads. A scan on the calling thread cuts the document into
+ * chunks of top-level element nodes, matching only parentheses and skipping
+ * strings and comments eight bytes at a time. Each chunk is parsed by a
+ * {@link Parser} of its own as soon as it is cut, into a log of events, and
+ * the logs are replayed to the client in document order. Hence, the client is
+ * called from the calling thread only, with the same sequence of events as
+ * when using a serial {@link Parser}. Resolving references across chunks is
+ * left to the client, as before. Line breaks are counted by the chunks
+ * themselves, so positions are known once the chunks before are replayed.
+ * <p>
+ * Only mapped files and in-memory sources can be split, streams are parsed
+ * serially, and so are documents smaller than a single chunk. The rest of
+ * the document after the last chunk is parsed serially, which reports the
+ * same errors as a serial parser if the document is not closed. If a chunk
+ * fails to parse, the error is raised once the chunks before it have been
+ * replayed, but the events of the failing chunk that precede the error are
+ * dropped, whereas a serial parser would have sent them.
+ * 
+ * @author akuhn
+ * 
+ */
+public class ParallelParser {
+
+    /**
+     * A range of top-level element nodes. Once parsed, the position of its end
+     * is known, relative to its start at line one.
+     */
+    private static class Chunk {
+
+        public final long from;
+        public final long to;
+        public Position end;
+
+        public Chunk(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+    }
+
+    /**
+     * Creates the client of each chunk on the thread that parses the chunk, and
+     * consumes the clients on the calling thread, in document order.
+     */
+    static abstract class ChunkClients<T extends ParseClient> {
+
+        public abstract T create(SymbolTable symbols);
+
+        public abstract void done(T client);
+
+    }
+
+    public static final int CHUNK_SIZE = 1 << 20;
+
+    private static ExecutorService shared;
+
+    /**
+     * Answers the executor of parsers and importers that have none set, a
+     * pool of daemon threads, one for each processor, shared by all of them.
+     * 
+     */
+    static synchronized ExecutorService sharedExecutor() {
+        if (shared == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            shared = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "MSE parser");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return shared;
+    }
+
+    /**
+     * Answers the result of the given task, rethrowing its failure on the
+     * calling thread.
+     * 
+     */
+    static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw Throw.exception(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw Throw.exception(cause);
+        }
+    }
+
+    private final InputSource in;
+    private final SymbolTable symbols;
+    private ExecutorService executor;
+    private int parallelism;
+    private int chunkSize;
+    private ImportFilter filter;
+
+    public ParallelParser(InputSource in) {
+        this(in, new SymbolTable());
+    }
+
+    public ParallelParser(InputSource in, SymbolTable symbols) {
+        this.in = in;
+        this.symbols = symbols;
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.chunkSize = CHUNK_SIZE;
+    }
+
+    public void accept(final ParseClient client) {
+        this.accept(client, new ChunkClients<EventLog>() {
+            @Override
+            public EventLog create(SymbolTable local) {
+                return new EventLog(local);
+            }
+
+            @Override
+            public void done(EventLog log) {
+                log.replay(client, symbols);
+            }
+        });
+    }
+
+    /**
+     * Parses the prologue and closing of the document into the given client,
+     * and each chunk of element nodes into a client of its own. Documents that
+     * are not split are parsed into the given client only.
+     * 
+     */
+    <T extends ParseClient> void accept(ParseClient client, ChunkClients<T> clients) {
+        if (!in.isRandomAccess() || parallelism < 2) {
+            this.parserOf(new Scanner(in, symbols)).accept(client);
+            return;
+        }
+        try {
+            this.acceptInParallel(client, clients);
+        } finally {
+            in.close();
+        }
+    }
+
+    private <T extends ParseClient> void acceptInParallel(ParseClient client, ChunkClients<T> clients) {
+        long length = in.length();
+        Position origin = in.getPosition();
+        Scanner head = new Scanner(in.slice(origin.index, length, origin.line, origin.index - origin.column),
+                symbols);
+        Parser parser = this.parserOf(head);
+        if (!parser.acceptPrologue(client))
+            return;
+        InputSource scan = in.slice(head.tokenStart(), length);
+        Chunk first = this.nextChunk(scan);
+        if (first == null) {
+            parser.accept(client);
+            return;
+        }
+        Position rest = this.acceptChunks(first, scan, head.tokenPosition(), clients);
+        this.parserOf(new Scanner(this.sliceOf(rest, length), symbols)).acceptRest(client);
+    }
+
+    /**
+     * Parses the given chunk, which starts at the given position, and each
+     * chunk cut by the given scan after it, as soon as it is cut. Answers the
+     * position of the rest of the document, ie of the end of the last chunk.
+     * 
+     */
+    private <T extends ParseClient> Position acceptChunks(Chunk first, InputSource scan, Position start,
+            ChunkClients<T> clients) {
+        ExecutorService pool = executor == null ? sharedExecutor() : executor;
+        Queue<Chunk> parsing = new LinkedList<Chunk>();
+        Queue<Future<T>> pending = new LinkedList<Future<T>>();
+        Position at = start;
+        try {
+            for (Chunk next = first; next != null; next = this.nextChunk(scan)) {
+                if (pending.size() >= 2 * parallelism)
+                    at = this.replay(parsing.remove(), pending.remove(), at, clients);
+                parsing.add(next);
+                pending.add(pool.submit(this.taskFor(next, clients)));
+            }
+            while (!pending.isEmpty())
+                at = this.replay(parsing.remove(), pending.remove(), at, clients);
+            return at;
+        } finally {
+            for (Future<T> each : pending)
+                each.cancel(true);
+        }
+    }
+
+    /**
+     * Answers the next chunk of the given scan, or null if the document is
+     * closed, or the input ends, before another chunk is cut.
+     * 
+     */
+    private Chunk nextChunk(InputSource scan) {
+        long from = scan.index();
+        return this.skipChunk(scan) ? new Chunk(from, scan.index()) : null;
+    }
+
+    private Parser parserOf(Scanner stream) {
+        Parser parser = new Parser(stream);
+        parser.setFilter(filter);
+        return parser;
+    }
+
+    /**
+     * Sets the executor to parse chunks, by default a pool is used that is
+     * shared by all parsers.
+     * 
+     */
+    public void setExecutor(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /** Sets the minimal size in bytes of chunks. */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /** Skips the nodes not selected by the given filter, see {@link Parser}. */
+    public void setFilter(ImportFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Replays the given chunk, which starts at the given position, and answers
+     * the position of its end. If the chunk fails to parse, it is parsed again
+     * on the calling thread to raise the error at its position.
+     * 
+     */
+    private <T extends ParseClient> Position replay(Chunk chunk, Future<T> result, Position at,
+            ChunkClients<T> clients) {
+        T client;
+        try {
+            client = get(result);
+        } catch (ParseError ex) {
+            this.parserOf(new Scanner(this.sliceOf(at, chunk.to), new SymbolTable()))
+                    .acceptElements(new AbstractParserClient());
+            throw ex;
+        }
+        clients.done(client);
+        Position end = chunk.end;
+        if (end.line == 1)
+            return new Position(at.line, at.column + (int) (end.index - chunk.from), end.index);
+        return new Position(at.line + end.line - 1, end.column, end.index);
+    }
+
+    /**
+     * Moves the given scan past the next chunk of element nodes, ie past the
+     * first top-level element node that ends at least chunkSize bytes after
+     * the current index. Answers false if the document is closed, or the input
+     * ends, before. Only parentheses are matched, strings and comments are
+     * skipped eight bytes at a time.
+     * 
+     */
+    private boolean skipChunk(InputSource scan) {
+        long from = scan.index();
+        int depth = 1;
+        while (true) {
+            char ch = scan.peek();
+            if (ch == InputSource.EOF)
+                return false;
+            scan.inc();
+            if (ch == '\"' || ch == '\'') {
+                if (!skipPast(scan, ch))
+                    return false;
+            } else if (ch == '(') {
+                depth++;
+            } else if (ch == ')') {
+                if (--depth == 0)
+                    return false;
+                if (depth == 1 && scan.index() - from >= chunkSize)
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Moves the given scan past the next occurrence of the given quote.
+     * Answers false if the input ends before.
+     * 
+     */
+    private static boolean skipPast(InputSource scan, char quote) {
+        while (true) {
+            scan.skipUntil(quote);
+            char ch = scan.peek(); // reads more input at the end of the window
+            if (ch == InputSource.EOF)
+                return false;
+            if (ch == quote) {
+                scan.inc();
+                return true;
+            }
+        }
+    }
+
+    private InputSource sliceOf(Position start, long to) {
+        return in.slice(start.index, to, start.line, start.index - start.column);
+    }
+
+    private <T extends ParseClient> Callable<T> taskFor(final Chunk chunk, final ChunkClients<T> clients) {
+        return new Callable<T>() {
+            public T call() {
+                SymbolTable local = new SymbolTable();
+                T client = clients.create(local);
+                InputSource source = in.slice(chunk.from, chunk.to);
+                parserOf(new Scanner(source, local)).acceptElements(client);
+                chunk.end = source.getPosition();
+                return client;
+            }
+        };
+    }
+
+}
@@ -18,20 +18,6 @@
 
 package ch.akuhn.fame.parser;
 
-import static ch.akuhn.fame.parser.TokenType.BOOLEAN;
-import static ch.akuhn.fame.parser.TokenType.CLOSE;
-import static ch.akuhn.fame.parser.TokenType.EOF;
-import static ch.akuhn.fame.parser.TokenType.ID;
-import static ch.akuhn.fame.parser.TokenType.KEYWORD;
-import static ch.akuhn.fame.parser.TokenType.NAME;
-import static ch.akuhn.fame.parser.TokenType.NUMBER;
-import static ch.akuhn.fame.parser.TokenType.OPEN;
-import static ch.akuhn.fame.parser.TokenType.REF;
-import static ch.akuhn.fame.parser.TokenType.STRING;
-
-import java.util.Collection;
-import java.util.LinkedList;
-
 /**
  * Simple MSE parser with an event-driven client. The interface
  * {@link ParseClient} defines a set of callback methods that will be called
@@ -74,6 +60,15 @@ import java.util.LinkedList;
  * Events are created for begin and end of document, elements and attributes,
  * for primitive values, for serial numbers, and for both, references by
  * identifier, by name and external references.
+ * <p>
+ * The parser consumes the cursor of its {@link Scanner} and looks ahead by a
+ * single token only, no token objects are created while parsing. Nodes are
+ * not parsed recursively, but by the state machine of {@link MseEventReader}
+ * with an explicit stack, hence any depth of nesting is supported.
+ * <p>
+ * If an {@link ImportFilter} is set, the parser skips the element and
+ * attribute nodes that the filter does not select, without tokenizing them and
+ * without events.
  * 
  * @author akuhn
  * 
@@ -82,145 +77,72 @@ public class Parser {
 
     private ParseClient client;
 
-    private Position pos, pos2;
-    private Token peek, peek2;
-    private Scanner stream;
+    private MseEventReader reader;
 
     public Parser(Scanner stream) {
-        this.stream = stream;
-        this.consume();
-        this.consume();
+        this.reader = new MseEventReader(stream);
     }
 
     public void accept(ParseClient newClient) {
-        this.client = newClient;
-        if (peek.type == EOF) {
-            client.beginDocument();
-            client.endDocument();
-        } else if (peek.type == OPEN) {
-            while (this.directive())
-                ;
-            client.beginDocument();
-            this.consume(OPEN);
-            while (this.elementNode())
-                ;
-            this.consume(CLOSE);
-            client.endDocument();
-        }
-        this.consume(EOF);
+        this.setClient(newClient);
+        while (reader.hasNext())
+            this.dispatch(reader.next());
     }
 
-    private boolean attributeNode() {
-        if (peek.type == OPEN && (peek2.type == NAME || peek2.type == KEYWORD)) {
-            this.consume();
-            String name = this.consume().stringValue();
-            client.beginAttribute(name);
-            while (this.valueNode())
-                ;
-            if (peek.type == NAME) // nice error message if quotes are missing
-                throw new ParseError(STRING, peek, pos);
-            this.consume(CLOSE);
-            client.endAttribute(name);
-            return true;
-        }
-        return false;
+    /**
+     * Parses a sequence of element nodes up to the end of input, as found in
+     * the chunks of a {@link ParallelParser} or in the span of an element
+     * located by an {@link OffsetIndex}. No document events are sent.
+     * 
+     */
+    public void acceptElements(ParseClient newClient) {
+        reader.readElements();
+        this.accept(newClient);
     }
 
-    private Token consume() {
-        pos = pos2;
-        pos2 = stream.pos();
-        Token current = peek;
-        peek = peek2;
-        peek2 = stream.nextOrEOF();
-        return current;
-    }
-
-    private Token consume(TokenType type) {
-        if (peek.type != type)
-            throw new ParseError(type, peek, pos);
-        return this.consume();
-    }
-
-    private boolean directive() {
-        if (peek.type == OPEN && peek2.type == KEYWORD) {
-            this.consume();
-            String name = this.consume(KEYWORD).stringValue();
-            Collection<String> parameters = new LinkedList<String>();
-            while (peek.type == STRING || peek.type == BOOLEAN || peek.type == NUMBER || peek.type == KEYWORD
-                    || peek.type == NAME) {
-                parameters.add(this.consume().stringValue());
-            }
-            this.consume(CLOSE);
-            client.directive(name, parameters.toArray(new String[parameters.size()]));
+    /**
+     * Parses the directives and the opening parenthesis of the document.
+     * Answers false if the input is empty, else the current token is the first
+     * token inside the document, and {@link #accept(ParseClient)} parses the
+     * rest of the document.
+     * 
+     */
+    boolean acceptPrologue(ParseClient newClient) {
+        this.setClient(newClient);
+        EventType type;
+        do {
+            type = reader.next();
+            this.dispatch(type);
+        } while (type == EventType.DIRECTIVE);
+        if (reader.isAtFirstElement())
             return true;
-        }
+        this.dispatch(reader.next());
         return false;
     }
 
-    private boolean elementNode() {
-        if (peek.type == OPEN && peek2.type == NAME) {
-            this.consume();
-            String name = this.consume(NAME).stringValue();
-            client.beginElement(name);
-            this.idColon();
-            while (this.attributeNode())
-                ;
-            this.consume(CLOSE);
-            client.endElement(name);
-            return true;
-        }
-        return false;
+    /**
+     * Parses the remaining element nodes and the closing parenthesis of a
+     * document, as found at the end of a {@link ParallelParser} input.
+     * 
+     */
+    void acceptRest(ParseClient newClient) {
+        reader.readRestOfDocument();
+        this.accept(newClient);
     }
 
-    private boolean idColon() {
-        if (peek.type == OPEN && peek2.type == ID) {
-            this.consume();
-            this.consume();
-            int index = this.consume(NUMBER).intValue();
-            client.serial(index);
-            this.consume(CLOSE);
-            return true;
-        }
-        return false;
-    }
-
-    private boolean primitive() {
-        if (peek.type == STRING || peek.type == NUMBER || peek.type == BOOLEAN) {
-            Object value = this.consume().value;
-            client.primitive(value);
-            return true;
-        }
-        return false;
+    private void dispatch(EventType type) {
+        reader.fire(type, client);
     }
 
-    private boolean refColon() {
-        if (peek.type == OPEN && peek2.type == REF) {
-            this.consume();
-            this.consume();
-            if (peek.type == NAME) {
-                String name = this.consume(NAME).stringValue();
-                client.reference(name);
-            } else if (peek.type == NUMBER) {
-                int serial = this.consume(NUMBER).intValue();
-                client.reference(serial);
-            } else {
-                throw new ParseError(NUMBER, peek, pos);
-            }
-            this.consume(CLOSE);
-            return true;
-        }
-        return false;
-    }
-
-    private boolean unknownColon() {
-        if (peek.type == OPEN && peek2.type == KEYWORD) {
-            throw new ParseError("Unknown selector #" + peek2.value, pos2);
-        }
-        return false;
+    private void setClient(ParseClient newClient) {
+        this.client = newClient;
+        if (newClient instanceof ImportFilter.SkipClient)
+            reader.setSkipClient((ImportFilter.SkipClient) newClient);
     }
 
-    private boolean valueNode() {
-        return elementNode() || primitive() || refColon() || unknownColon();
+    /** Skips the nodes not selected by the given filter, or none if null. */
+    public void setFilter(ImportFilter filter) {
+        reader.setFilter(filter);
     }
 
 }
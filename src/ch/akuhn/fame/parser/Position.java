@@ -22,9 +22,9 @@ public class Position {
 
     public final int line;
     public final int column;
-    public final int index;
+    public final long index;
 
-    public Position(int line, int column, int index) {
+    public Position(int line, int column, long index) {
         this.line = line;
         this.column = column;
         this.index = index;
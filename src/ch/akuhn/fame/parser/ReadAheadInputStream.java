@@ -0,0 +1,128 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Input stream that reads (and thus decompresses) its underlying stream on a
+ * separate thread, keeping a bounded number of blocks ahead of the reader.
+ * Closing this stream stops the thread and closes the underlying stream.
+ * 
+ * @author akuhn
+ * 
+ */
+class ReadAheadInputStream extends InputStream {
+
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> blocks;
+    private final Thread thread;
+    private volatile IOException failure;
+
+    private byte[] block;
+    private int position;
+
+    public ReadAheadInputStream(final InputStream input, final int blockSize, int count) {
+        this.blocks = new ArrayBlockingQueue<byte[]>(count);
+        this.thread = new Thread("MSE read-ahead") {
+            @Override
+            public void run() {
+                try {
+                    readAhead(input, blockSize);
+                } catch (InterruptedException ex) {
+                    // closed by reader
+                } finally {
+                    try {
+                        input.close();
+                    } catch (IOException ignored) {
+                        // nothing left to read
+                    }
+                }
+            }
+        };
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+        block = END;
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (block == END)
+            return false;
+        if (block != null && position < block.length)
+            return true;
+        try {
+            block = blocks.take();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        }
+        position = 0;
+        if (block == END && failure != null)
+            throw failure;
+        return block != END;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!this.nextBlock())
+            return -1;
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        if (!this.nextBlock())
+            return -1;
+        int count = Math.min(length, block.length - position);
+        System.arraycopy(block, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    private void readAhead(InputStream input, int blockSize) throws InterruptedException {
+        try {
+            while (true) {
+                byte[] each = new byte[blockSize];
+                int length = 0;
+                for (int n; length < blockSize && (n = input.read(each, length, blockSize - length)) > 0;)
+                    length += n;
+                if (length > 0)
+                    blocks.put(length < blockSize ? Arrays.copyOf(each, length) : each);
+                if (length < blockSize)
+                    break;
+            }
+        } catch (IOException ex) {
+            failure = ex;
+        }
+        blocks.put(END);
+    }
+
+}
@@ -18,12 +18,10 @@
 
 package ch.akuhn.fame.parser;
 
-import static java.lang.Character.isDigit;
-import static java.lang.Character.isLetter;
-import static java.lang.Character.isLetterOrDigit;
 import static java.lang.Double.parseDouble;
-import static java.lang.Integer.parseInt;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.Iterator;
 
 /**
@@ -75,6 +73,19 @@ import java.util.Iterator;
  * Keyword ::= ... | Letter+ &quot;:&quot;
  * </pre>
  * 
+ * <p>
+ * The scanner works on raw bytes, characters are classified using ASCII lookup
+ * tables. Bytes outside ASCII are accepted as part of names and strings, and
+ * only decoded (using the charset of the input source) when the value of a
+ * token is created. Strings and comments are skipped eight bytes at a time, see
+ * {@link InputSource}.
+ * <p>
+ * Digits of numbers are accumulated while scanning. Integers are answered as
+ * <tt>Integer</tt>, <tt>Long</tt> or <tt>BigInteger</tt>, depending on their
+ * magnitude. Decimals are answered as <tt>Double</tt>, and converted exactly
+ * without creating a string unless they have more than 15 significant digits
+ * or a large exponent. Use {@link #decimalValue()} for exact decimals.
+ * 
  */
 public class Scanner implements Iterator<Token>, Iterable<Token> {
 
@@ -87,26 +98,171 @@ public class Scanner implements Iterator<Token>, Iterable<Token> {
     private static final Token ID = new Token(TokenType.ID, "id:");
     private static final Token UNDEFINED = new Token(TokenType.UNDEFINED, "nil");
 
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private static final byte WHITESPACE = 1;
+    private static final byte LETTER = 2;
+    private static final byte DIGIT = 4;
+
+    /** Character classes of all byte values, as bit set. */
+    private static final byte[] CLASSES = new byte[256];
+
+    static {
+        // same as Character.isWhitespace for chars below 256
+        for (char ch : "\t\n\u000B\f\r\u001C\u001D\u001E\u001F ".toCharArray())
+            CLASSES[ch] = WHITESPACE;
+        for (char ch = 'a'; ch <= 'z'; ch++)
+            CLASSES[ch] = LETTER;
+        for (char ch = 'A'; ch <= 'Z'; ch++)
+            CLASSES[ch] = LETTER;
+        CLASSES['_'] = LETTER;
+        for (int ch = 0x80; ch < 0x100; ch++)
+            CLASSES[ch] = LETTER;
+        for (char ch = '0'; ch <= '9'; ch++)
+            CLASSES[ch] = DIGIT;
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch < 256 && (CLASSES[ch] & DIGIT) != 0;
+    }
+
+    private static boolean isLetter(char ch) {
+        return ch < 256 && (CLASSES[ch] & LETTER) != 0;
+    }
+
+    private static boolean isLetterOrDigit(char ch) {
+        return ch < 256 && (CLASSES[ch] & (LETTER | DIGIT)) != 0;
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch < 256 && (CLASSES[ch] & WHITESPACE) != 0;
+    }
+
     protected final InputSource in; // access from parser to query
 
+    private final SymbolTable symbols;
+
+    private TokenType type;
+    private long tokenStart;
+    private long tokenEnd;
+    private Position tokenPosition;
+    private boolean isDouble; // if type is NUMBER
+    private boolean isNegative; // if type is NUMBER
+    private boolean isExact; // if type is NUMBER, mantissa holds all digits
+    private long mantissa; // if type is NUMBER, digits without sign
+    private int exponent; // if type is NUMBER, decimal exponent of mantissa
+    private boolean isEscaped; // if type is STRING, contains escaped quotes
+    private boolean isAscii; // if type is STRING, contains ASCII only
+    private Object value; // materialized lazily
+    private int symbol; // resolved lazily, -1 if not yet
+    private long tokens; // number of tokens scanned
+
     public Scanner(CharSequence string) {
         this(InputSource.fromString(string));
     }
 
     public Scanner(InputSource in) {
+        this(in, new SymbolTable());
+    }
+
+    public Scanner(InputSource in, SymbolTable symbols) {
         this.in = in;
+        this.symbols = symbols;
+    }
+
+    /**
+     * Moves the cursor to the next token, or to EOF at the end of input. The
+     * value of the token is not materialized until it is requested, and may
+     * only be requested until the cursor moves on.
+     * 
+     * @return the type of the new current token.
+     */
+    public TokenType advance() {
+        this.skipWhitespace();
+        value = null;
+        symbol = -1;
+        tokenPosition = null;
+        tokenStart = in.index();
+        in.mark();
+        char ch = in.peek();
+        if (ch == InputSource.EOF)
+            type = TokenType.EOF;
+        else if (ch == '(')
+            type = openingParenthesis();
+        else if (ch == ')')
+            type = closingParenthesis();
+        else if (ch == '\'')
+            type = string();
+        else if (ch == '-' || isDigit(ch))
+            type = number();
+        else if (isLetter(ch))
+            type = nameOrSomethingLikeThat();
+        else if (ch == '@')
+            type = keyword();
+        else
+            throw new ParseError("Illegal character '" + ch + "'", pos());
+        tokenEnd = in.index();
+        if (type != TokenType.EOF)
+            tokens++;
+        return type;
+    }
+
+    /**
+     * Moves the cursor back to the token that starts at the given index, and
+     * scans that token again.
+     * 
+     */
+    TokenType rescan(long at) {
+        in.seek(at);
+        return this.advance();
+    }
+
+    public boolean booleanValue() {
+        assert type == TokenType.BOOLEAN;
+        return in.byteAt(tokenStart) == 't';
     }
 
-    private Token closingParenthesis() {
+    private TokenType closingParenthesis() {
         in.inc();
-        return CLOSE;
+        return TokenType.CLOSE;
+    }
+
+    /** Answers the exact value of the current number. */
+    public BigDecimal decimalValue() {
+        assert type == TokenType.NUMBER;
+        return new BigDecimal(in.decode(tokenStart, tokenEnd, true));
+    }
+
+    private void digit(char ch) {
+        int digit = ch - '0';
+        if (mantissa <= (Long.MAX_VALUE - digit) / 10)
+            mantissa = mantissa * 10 + digit;
+        else
+            isExact = false;
+    }
+
+    public double doubleValue() {
+        assert type == TokenType.NUMBER;
+        if (value != null)
+            return ((Number) value).doubleValue();
+        if (isExact) {
+            // both, mantissa and power of ten, are exact doubles (Clinger)
+            if (exponent == 0)
+                return isNegative ? -mantissa : mantissa;
+            if (mantissa < 1L << 53 && exponent >= -22 && exponent <= 22) {
+                double d = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+                return isNegative ? -d : d;
+            }
+        }
+        return parseDouble(in.decode(tokenStart, tokenEnd, true));
     }
 
     private final void expectDelimiterToken() {
         if (!in.hasNext())
             return; // EOF is okay!
         char ch = in.peek();
-        if (ch == '\"' || Character.isWhitespace(ch) || ch == '(' || ch == ')')
+        if (ch == '\"' || isWhitespace(ch) || ch == '(' || ch == ')')
             return;
         throw new ParseError("Whitespace or delimiter expected", pos());
     }
@@ -120,7 +276,7 @@ public class Scanner implements Iterator<Token>, Iterable<Token> {
         if (!in.hasNext())
             return; // EOF is okay!
         char ch = in.peek();
-        if (ch == '\"' || Character.isWhitespace(ch))
+        if (ch == '\"' || isWhitespace(ch))
             return;
         throw new ParseError("Whitespace expected", pos());
     }
@@ -130,12 +286,31 @@ public class Scanner implements Iterator<Token>, Iterable<Token> {
         return in.hasNext();
     }
 
+    /**
+     * Answers the value of the current number as int.
+     * 
+     * @throws NumberFormatException
+     *             if the number is not an integer in the range of int.
+     */
+    public int intValue() {
+        if (!this.isInt())
+            throw new NumberFormatException(in.decode(tokenStart, tokenEnd, true));
+        return (int) this.longValue();
+    }
+
+    /** Answers if the current number is an integer in the range of int. */
+    boolean isInt() {
+        assert type == TokenType.NUMBER;
+        if (isDouble || !isExact)
+            return false;
+        return mantissa <= (isNegative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE);
+    }
+
     public Iterator<Token> iterator() {
         return this;
     }
 
-    private Token keyword() {
-        in.mark();
+    private TokenType keyword() {
         if ('@' != in.peek())
             throw new ParseError("At sign expected", pos());
         in.inc();
@@ -146,7 +321,7 @@ public class Scanner implements Iterator<Token>, Iterable<Token> {
 
         this.expectWhitespaceToken();
 
-        return new Token(TokenType.KEYWORD, in.yank().toString());
+        return TokenType.KEYWORD;
     }
 
     private void letterExpected() {
@@ -154,8 +329,23 @@ public class Scanner implements Iterator<Token>, Iterable<Token> {
             throw new ParseError("Letter expected", pos());
     }
 
-    private Token nameOrSomethingLikeThat() {
-        in.mark();
+    private String materializeString() {
+        long from = tokenStart + 1;
+        long to = tokenEnd - 1;
+        if (!isEscaped)
+            return in.decode(from, to, isAscii);
+        StringBuilder buffer = new StringBuilder();
+        for (long each = from; each < to; each++) {
+            if (in.byteAt(each) == '\'') {
+                // escaped quote, keep the first one
+                buffer.append(in.decode(from, each + 1, isAscii));
+                from = ++each + 1;
+            }
+        }
+        return buffer.append(in.decode(from, to, isAscii)).toString();
+    }
+
+    private TokenType nameOrSomethingLikeThat() {
         while (true) {
             this.letterExpected();
             while (isLetterOrDigit(in.peek()))
@@ -170,37 +360,29 @@ public class Scanner implements Iterator<Token>, Iterable<Token> {
 
         this.expectDelimiterToken();
 
-        String name = in.yank().toString();
-        if (name.equals("nil"))
-            return UNDEFINED;
-        if (name.equals("true"))
-            return TRUE;
-        if (name.equals("false"))
-            return FALSE;
-        return new Token(TokenType.NAME, name);
+        long end = in.index();
+        if (in.matches(tokenStart, end, "nil"))
+            return TokenType.UNDEFINED;
+        if (in.matches(tokenStart, end, "true") || in.matches(tokenStart, end, "false"))
+            return TokenType.BOOLEAN;
+        return TokenType.NAME;
     }
 
     public Token next() {
-        this.skipWhitespace();
-        char ch = in.peek();
-        if (ch == '(')
-            return openingParenthesis();
-        if (ch == ')')
-            return closingParenthesis();
-        if (ch == '\'')
-            return string();
-        if (ch == '-' || Character.isDigit(ch))
-            return number();
-        if (Character.isLetter(ch))
-            return nameOrSomethingLikeThat();
-        if (ch == '@')
-            return keyword();
-        throw new ParseError("Illegal character '" + ch + "'", pos());
+        this.advance();
+        return this.token();
     }
 
     public Token nextOrEOF() {
-        Token n = hasNext() ? next() : EOF;
-        return n;
+        return this.next();
+    }
+
+    /** Answers the value of the current number as long. */
+    public long longValue() {
+        assert type == TokenType.NUMBER;
+        if (!isDouble && isExact)
+            return isNegative ? -mantissa : mantissa;
+        return ((Number) this.value()).longValue();
     }
 
     /**
@@ -212,64 +394,84 @@ public class Scanner implements Iterator<Token>, Iterable<Token> {
      * 
      * @return a NUMBER token
      */
-    private Token number() {
-        in.mark();
-        boolean isDouble = false;
+    private TokenType number() {
+        isDouble = false;
+        isNegative = false;
+        isExact = true;
+        mantissa = 0;
+        exponent = 0;
+        char ch;
 
         // match -? <digit>+
-        if (in.peek() == '-')
+        if (in.peek() == '-') {
+            isNegative = true;
             in.inc();
+        }
         this.expectDigit();
-        while (isDigit(in.peek())) {
+        while (isDigit(ch = in.peek())) {
+            this.digit(ch);
             in.inc();
         }
 
         // match ( . <digit>+ )?
-        if (in.peek() == '.') {
+        if (ch == '.') {
             isDouble = true;
             in.inc();
             this.expectDigit();
-            while (isDigit(in.peek()))
+            while (isDigit(ch = in.peek())) {
+                this.digit(ch);
+                exponent--;
                 in.inc();
+            }
         }
 
         // match ( e -? <digit>+ )?
-        if (in.peek() == 'e' || in.peek() == 'E') {
+        if (ch == 'e' || ch == 'E') {
             isDouble = true;
             in.inc();
-            if (in.peek() == '-')
+            boolean negative = in.peek() == '-';
+            if (negative)
                 in.inc();
             this.expectDigit();
-            while (isDigit(in.peek()))
+            int power = 0;
+            while (isDigit(ch = in.peek())) {
+                if (power < 100000) // saturate, parseDouble handles the rest
+                    power = power * 10 + ch - '0';
                 in.inc();
+            }
+            exponent += negative ? -power : power;
         }
 
         this.expectDelimiterToken();
 
-        String str = in.yank().toString();
-        return isDouble ? new Token(parseDouble(str)) : new Token(parseInt(str));
+        return TokenType.NUMBER;
     }
 
-    private Token openingParenthesis() {
+    private TokenType openingParenthesis() {
         in.inc();
-        return OPEN;
+        return TokenType.OPEN;
+    }
+
+    /** Answers the number of tokens scanned so far, not counting EOF. */
+    long tokenCount() {
+        return tokens;
     }
 
     public final Position pos() {
         return in.getPosition();
     }
 
-    private Token reference() {
+    private TokenType reference() {
         // called from nextNameOrKeywordOrBoolean
         in.inc(); // consume ':'
-        String name = in.yank().toString();
+        long end = in.index();
 
         this.expectWhitespaceToken();
 
-        if (name.equals("id:"))
-            return ID;
-        if (name.equals("ref:"))
-            return REF;
+        if (in.matches(tokenStart, end, "id:"))
+            return TokenType.ID;
+        if (in.matches(tokenStart, end, "ref:"))
+            return TokenType.REF;
         throw new ParseError("Illegal character ':'", pos());
     }
 
@@ -278,52 +480,275 @@ public class Scanner implements Iterator<Token>, Iterable<Token> {
     }
 
     private void skipComment() {
-        Position start = this.pos();
+        long start = in.index();
         if (in.peek() != '\"')
             return;
-        for (in.inc2();; in.inc2()) {
+        Position position = null; // of the comment, once it is released
+        for (in.inc();; in.inc()) {
+            in.skipUntil('\"');
+            if (in.atLimit()) {
+                if (position == null)
+                    position = in.getPosition(start);
+                in.mark(); // release the comment read so far
+            }
             char ch = in.peek();
-            if (ch == InputSource.EOF)
-                throw new ParseError("Runaway comment ", start);
+            if (ch == InputSource.EOF) {
+                if (position == null)
+                    position = in.getPosition(start);
+                throw new ParseError("Runaway comment ", position);
+            }
             if (ch == '\"')
                 break;
         }
-        in.inc2();
+        in.inc();
+    }
+
+    /**
+     * Skips the rest of the node that contains the current token, up to the
+     * closing parenthesis of that node, which becomes the current token. The
+     * input is not tokenized, only parentheses are matched, and strings and
+     * comments are skipped eight bytes at a time. Nothing of the skipped input
+     * is retained. The serials of skipped elements, ie the numbers of
+     * <code>(id: n)</code> nodes, are told to the given client, if any. Used by
+     * {@link MseEventReader} to skip nodes rejected by an {@link ImportFilter}.
+     *
+     */
+    void skipNode(ImportFilter.SkipClient client) {
+        if (type == TokenType.CLOSE)
+            return; // node is empty
+        int open = type == TokenType.OPEN ? 2 : 1;
+        boolean afterOpen = type == TokenType.OPEN; // and whitespace only
+        while (true) {
+            in.mark(); // release skipped input
+            char ch = in.peek();
+            if (ch == '\"') {
+                this.skipComment();
+                continue;
+            }
+            if (ch == '\'') {
+                this.skipString();
+                afterOpen = false;
+                continue;
+            }
+            if (ch == InputSource.EOF)
+                throw new ParseError("Runaway node", pos());
+            if (ch == ')' && --open == 0)
+                break;
+            if (ch == 'i' && afterOpen && client != null) {
+                this.skipSerial(client);
+                afterOpen = false;
+                continue;
+            }
+            if (ch == '(')
+                open++;
+            afterOpen = ch == '(' || afterOpen && isWhitespace(ch);
+            in.inc();
+        }
+        value = null;
+        symbol = -1;
+        tokenPosition = null;
+        tokenStart = in.index();
+        type = this.closingParenthesis();
+        tokenEnd = in.index();
+    }
+
+    /**
+     * Skips <code>id:</code> and the number after it, if any, and tells the
+     * number to the given client. Stops at the first character that does not
+     * match, which is not skipped unless it is the leading <code>i</code>.
+     * 
+     */
+    private void skipSerial(ImportFilter.SkipClient client) {
+        in.inc();
+        if (in.peek() != 'd')
+            return;
+        in.inc();
+        if (in.peek() != ':')
+            return;
+        in.inc();
+        while (isWhitespace(in.peek()))
+            in.inc();
+        if (!isDigit(in.peek()))
+            return;
+        long serial = 0;
+        for (char ch = in.peek(); isDigit(ch) && serial <= Integer.MAX_VALUE; ch = in.peek()) {
+            serial = serial * 10 + (ch - '0');
+            in.inc();
+        }
+        if (serial <= Integer.MAX_VALUE)
+            client.skippedSerial((int) serial);
+    }
+
+    private void skipString() {
+        for (in.inc();;) {
+            in.skipUntil('\'');
+            if (in.atLimit())
+                in.mark(); // release the string read so far
+            char ch = in.peek();
+            if (ch == '\'')
+                break;
+            if (ch == InputSource.EOF)
+                throw new ParseError("Runaway string", pos());
+        }
+        in.inc();
     }
 
     private void skipWhitespace() {
-        for (;; in.inc2()) {
-            Character ch = in.peek();
+        for (;; in.inc()) {
+            in.mark(); // release previous token and skipped input
+            char ch = in.peek();
             if (ch == InputSource.EOF)
                 break;
             if (ch == '\"') {
                 this.skipComment();
                 continue;
             }
-            if (!Character.isWhitespace(ch))
+            if (!isWhitespace(ch))
                 break;
         }
     }
 
-    private Token string() {
-        Position start = this.pos();
-        StringBuilder buffer = new StringBuilder();
-        for (in.inc();;) {
+    /**
+     * Answers the value of the current token as string. Names and keywords are
+     * answered as canonical strings of the symbol table, ie equal names are
+     * answered as identical strings.
+     * 
+     */
+    public String stringValue() {
+        if (type == TokenType.NAME || type == TokenType.KEYWORD)
+            return (String) this.value();
+        return String.valueOf(this.value());
+    }
+
+    private TokenType string() {
+        in.inc();
+        int bits = 0; // or-ed bytes, to tell if any is non-ASCII
+        isEscaped = false;
+        while (true) {
+            if (in.skipUntil('\''))
+                bits |= 0x80;
             char ch = in.peek();
             if (ch == InputSource.EOF)
-                throw new ParseError("Runaway string", start);
+                throw new ParseError("Runaway string", in.getPosition(tokenStart));
             in.inc();
             if (ch == '\'') {
                 if (in.peek() != '\'')
                     break;
+                isEscaped = true;
                 in.inc();
             }
-            buffer.append(ch);
+            bits |= ch;
         }
+        isAscii = bits < 0x80;
 
         this.expectDelimiterToken();
 
-        return new Token(TokenType.STRING, buffer.toString());
+        return TokenType.STRING;
+    }
+
+    /**
+     * Answers the id of the current name or keyword in the symbol table.
+     * Known names are resolved directly from the input, without creating a
+     * string.
+     * 
+     */
+    public int symbol() {
+        assert type == TokenType.NAME || type == TokenType.KEYWORD;
+        if (symbol < 0)
+            symbol = symbols.lookup(in, tokenStart, tokenEnd);
+        return symbol;
+    }
+
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /**
+     * Answers the current token as object, this allocates a new token for
+     * names, keywords, strings and numbers.
+     * 
+     */
+    public Token token() {
+        switch (type) {
+        case OPEN:
+            return OPEN;
+        case CLOSE:
+            return CLOSE;
+        case ID:
+            return ID;
+        case REF:
+            return REF;
+        case UNDEFINED:
+            return UNDEFINED;
+        case BOOLEAN:
+            return this.booleanValue() ? TRUE : FALSE;
+        case NUMBER:
+            return new Token((Number) this.value());
+        case EOF:
+            return EOF;
+        default:
+            return new Token(type, this.stringValue());
+        }
+    }
+
+    /** Answers the index after the last byte of the current token. */
+    public long tokenEnd() {
+        return tokenEnd;
+    }
+
+    /** Answers the position of the current token. */
+    public Position tokenPosition() {
+        if (tokenPosition == null)
+            tokenPosition = in.getPosition(tokenStart);
+        return tokenPosition;
+    }
+
+    /**
+     * Answers the position of the given index before the current token, or
+     * the position of the current token if the input before it has already
+     * been released.
+     * 
+     */
+    Position positionOf(long at) {
+        return in.retains(at) ? in.getPosition(at) : this.tokenPosition();
+    }
+
+    /** Answers the index of the first byte of the current token. */
+    public long tokenStart() {
+        return tokenStart;
+    }
+
+    /** Answers the type of the current token. */
+    public TokenType type() {
+        return type;
+    }
+
+    /**
+     * Answers the value of the current token, materializing it if necessary.
+     * Values are of the same type as in {@link Token#value}.
+     * 
+     */
+    public Object value() {
+        if (value != null)
+            return value;
+        switch (type) {
+        case NAME:
+        case KEYWORD:
+            return value = symbols.nameOf(this.symbol());
+        case STRING:
+            return value = this.materializeString();
+        case NUMBER:
+            if (isDouble)
+                return value = this.doubleValue();
+            if (isExact) {
+                long n = isNegative ? -mantissa : mantissa;
+                return value = n == (int) n ? (Object) Integer.valueOf((int) n) : (Object) Long.valueOf(n);
+            }
+            BigInteger big = new BigInteger(in.decode(tokenStart, tokenEnd, true));
+            return value = big.bitLength() < 64 ? (Object) big.longValue() : big;
+        default:
+            return value = this.token().value;
+        }
     }
 
 }
@@ -0,0 +1,125 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.util.Arrays;
+
+/**
+ * Maps serials to entries, ie to dense indices that importers use to keep
+ * what they know about a serial in arrays of their own. The serials are kept
+ * in an open-addressed table with primitive keys and linear probing. Entries
+ * of removed serials are reused, so that the arrays of an importer need not
+ * be larger than the peak number of serials kept.
+ * 
+ * @author akuhn
+ * 
+ */
+class SerialTable {
+
+    public static final int NONE = -1;
+
+    private static int hash(int serial) {
+        int h = serial * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int[] keys = new int[1024];
+    private int[] entries = new int[1024]; // entry + 1, or 0 if empty
+    private int size = 0;
+    private int limit = 0; // entries used so far
+    private int[] free = new int[16]; // stack of removed entries
+    private int freeCount = 0;
+
+    /** Answers the entry of the given serial, or NONE if it is not kept. */
+    public int get(int serial) {
+        return entries[this.slotOf(serial)] - 1;
+    }
+
+    /**
+     * Answers the entry of the given serial, adding a new entry if the serial
+     * is not kept. A new entry may be a removed one, which the importer must
+     * have cleared.
+     * 
+     */
+    public int put(int serial) {
+        int slot = this.slotOf(serial);
+        if (entries[slot] != 0)
+            return entries[slot] - 1;
+        int entry = freeCount > 0 ? free[--freeCount] : limit++;
+        keys[slot] = serial;
+        entries[slot] = entry + 1;
+        if (++size * 2 > keys.length)
+            this.rehash();
+        return entry;
+    }
+
+    /**
+     * Removes the given serial, if kept. Later serials of its probe sequence
+     * are shifted back into the emptied slot, so that no tombstones are left.
+     * 
+     */
+    public void remove(int serial) {
+        int hole = this.slotOf(serial);
+        if (entries[hole] == 0)
+            return;
+        if (freeCount == free.length)
+            free = Arrays.copyOf(free, freeCount * 2);
+        free[freeCount++] = entries[hole] - 1;
+        size--;
+        int mask = keys.length - 1;
+        for (int slot = (hole + 1) & mask; entries[slot] != 0; slot = (slot + 1) & mask) {
+            int home = hash(keys[slot]) & mask;
+            if (((slot - home) & mask) < ((slot - hole) & mask))
+                continue; // hole lies before home
+            keys[hole] = keys[slot];
+            entries[hole] = entries[slot];
+            hole = slot;
+        }
+        entries[hole] = 0;
+    }
+
+    /** Answers the number of serials kept. */
+    public int size() {
+        return size;
+    }
+
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldEntries = entries;
+        keys = new int[oldKeys.length * 2];
+        entries = new int[oldKeys.length * 2];
+        for (int n = 0; n < oldKeys.length; n++) {
+            if (oldEntries[n] == 0)
+                continue;
+            int slot = this.slotOf(oldKeys[n]);
+            keys[slot] = oldKeys[n];
+            entries[slot] = oldEntries[n];
+        }
+    }
+
+    /** Answers the slot of the given serial, or the empty slot to put it. */
+    private int slotOf(int serial) {
+        int mask = keys.length - 1;
+        for (int slot = hash(serial) & mask;; slot = (slot + 1) & mask) {
+            if (entries[slot] == 0 || keys[slot] == serial)
+                return slot;
+        }
+    }
+
+}
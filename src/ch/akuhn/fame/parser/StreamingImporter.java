@@ -0,0 +1,467 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.fm3.MetaDescription;
+import ch.akuhn.fame.fm3.PropertyDescription;
+import ch.akuhn.util.Throw;
+
+/**
+ * Reads MSE document (in one pass) and delivers each element to a sink as
+ * soon as the element and all its references are resolved, without keeping a
+ * model. Elements are delivered in the order in which they are completed,
+ * nested elements before their container, unless the container is completed
+ * first as it waits for references.
+ * <p>
+ * Random access sources are counted in a quick pre-scan, which skips all
+ * primitive values, to know how often each serial is referenced. The importer
+ * then releases a serial as soon as its last reference is resolved, and keeps
+ * no serial that is never referenced. Hence, memory is bounded by the serials
+ * with pending references, as the entries of released serials are reused.
+ * Streams are not counted, and all their serials are kept.
+ * <p>
+ * Attributes with an opposite update the elements they refer to. Hence, an
+ * element is not delivered while a write with an opposite that refers to it is
+ * pending, eg nested elements wait for the attribute of their container. For
+ * counted sources, elements of a type with opposites are further held until
+ * their last reference is resolved. Streams cannot know the references still
+ * to come, so their elements may be updated after they have been delivered.
+ * 
+ * @author akuhn
+ * 
+ */
+@SuppressWarnings("unchecked")
+public class StreamingImporter extends AbstractParserClient {
+
+    /**
+     * Iterates over the elements of an importer that runs on a separate
+     * thread, keeping a bounded number of elements ahead of the reader.
+     * Closing the iterator stops the thread.
+     */
+    public static class Elements implements Iterator<Object> {
+
+        private static final Object END = new Object();
+
+        private final BlockingQueue<Object> queue;
+        private final Thread thread;
+        private volatile Throwable failure;
+        private Object next;
+
+        private Elements(final MetaRepository metamodel, final InputSource in, int capacity) {
+            this.queue = new ArrayBlockingQueue<Object>(capacity);
+            this.thread = new Thread("MSE streaming import") {
+                @Override
+                public void run() {
+                    try {
+                        new StreamingImporter(metamodel, new ImportSink() {
+                            public void accept(Object element) {
+                                put(element);
+                            }
+                        }).readFrom(in);
+                    } catch (Throwable ex) {
+                        failure = ex;
+                    } finally {
+                        in.close();
+                    }
+                    if (!Thread.currentThread().isInterrupted())
+                        put(END);
+                }
+            };
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        public void close() {
+            thread.interrupt();
+            next = END;
+        }
+
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw Throw.exception(ex);
+                }
+                if (next == END && failure != null)
+                    throw Throw.exception(failure);
+            }
+            return next != END;
+        }
+
+        public Object next() {
+            if (!this.hasNext())
+                throw new NoSuchElementException();
+            Object element = next;
+            next = null;
+            return element;
+        }
+
+        private void put(Object element) {
+            try {
+                queue.put(element);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw Throw.exception(ex); // closed by reader
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /** Open elements, with their pending state and open write. */
+    private static class Frames extends FrameStack {
+
+        public Pending[] pendings = new Pending[16]; // or null if not waiting
+        public Write[] writes = new Write[16]; // or null if no open reference
+
+        @Override
+        protected void grow(int capacity) {
+            super.grow(capacity);
+            pendings = Arrays.copyOf(pendings, capacity);
+            writes = Arrays.copyOf(writes, capacity);
+        }
+
+    }
+
+    /** An element that waits for writes or references. */
+    private static class Pending {
+
+        public final Object element;
+        public int holds; // own writes, writes of others and references to come
+        public boolean ended;
+
+        public Pending(Object element) {
+            this.element = element;
+        }
+
+    }
+
+    /** An attribute that waits for references. */
+    private static class Write {
+
+        public final Pending owner;
+        public final PropertyDescription property;
+        public final List<Object> values;
+        public int openReferences;
+        public boolean ended;
+        public List<Pending> targets; // elements that wait for this write, or null
+
+        public Write(Pending owner, PropertyDescription property, List<Object> values) {
+            this.owner = owner;
+            this.property = property;
+            this.values = values;
+        }
+
+    }
+
+    private static final int NONE = -1;
+    private static final int UNCOUNTED = -1;
+
+    /**
+     * Imports the given source on a separate thread, answering its elements.
+     * The importer blocks while the given number of elements are waiting to
+     * be read.
+     * 
+     */
+    public static Elements elements(MetaRepository metamodel, InputSource in, int capacity) {
+        return new Elements(metamodel, in, capacity);
+    }
+
+    private final ImportSink sink;
+    private final SymbolTable symbols;
+    private final ImportPlan.Table plans;
+    private boolean counted;
+
+    private final SerialTable table = new SerialTable();
+    private Object[] elements = new Object[1024]; // by entry, or null if none (yet)
+    private int[] counts = new int[1024]; // references still to come, or UNCOUNTED
+    private int[] chains = new int[1024]; // first reminder + 1, or 0 if none
+    private Pending[] pendings = new Pending[1024]; // held by references to come
+
+    private Write[] reminderWrites = new Write[256];
+    private int[] reminderPositions = new int[256];
+    private int[] reminderLinks = new int[256]; // next reminder in chain or free list
+    private int reminders = 0;
+    private int free = NONE;
+    private int openReferences = 0;
+
+    private final Frames frames = new Frames();
+
+    public StreamingImporter(MetaRepository metamodel, ImportSink sink) {
+        this.sink = sink;
+        this.symbols = new SymbolTable(metamodel);
+        this.plans = new ImportPlan.Table(metamodel, symbols);
+    }
+
+    @Override
+    public void beginAttribute(String name) {
+        frames.beginAttribute(symbols, name);
+        frames.writes[frames.depth - 1] = null;
+    }
+
+    @Override
+    public void beginElement(String name) {
+        ImportPlan plan = plans.planOf(name);
+        frames.pendings[frames.depth] = null;
+        frames.push(plan, plan.newInstance());
+    }
+
+    private void countReferences(InputSource in) {
+        MseEventReader reader = new MseEventReader(new Scanner(in));
+        reader.skipValues();
+        counted = true;
+        while (reader.hasNext()) {
+            if (reader.next() == EventType.REFERENCE) {
+                int entry = this.insert(reader.getIndex());
+                counts[entry]++;
+            }
+        }
+    }
+
+    private void emit(Pending pending) {
+        if (pending.holds == 0 && pending.ended)
+            sink.accept(pending.element);
+    }
+
+    @Override
+    public void endAttribute(String name) {
+        int top = frames.depth - 1;
+        Write write = frames.writes[top];
+        if (write == null) {
+            frames.properties[top].writeAll(frames.elements[top], frames.values[top]);
+        } else {
+            write.ended = true;
+            this.maybeWrite(write);
+        }
+        frames.endAttribute();
+        frames.writes[top] = null;
+    }
+
+    @Override
+    public void endDocument() {
+        assert frames.depth == 0;
+        assert openReferences == 0 : openReferences + " dangling references";
+    }
+
+    @Override
+    public void endElement(String name) {
+        Pending pending = frames.pendings[frames.depth - 1];
+        frames.pendings[frames.depth - 1] = null;
+        Object element = frames.pop();
+        if (frames.depth > 0) {
+            frames.add(element);
+            if (frames.properties[frames.depth - 1].hasOpposite()) {
+                if (pending == null)
+                    pending = new Pending(element);
+                this.hold(this.openWrite(), pending);
+            }
+        }
+        if (pending == null) {
+            sink.accept(element);
+        } else {
+            pending.ended = true;
+            this.emit(pending);
+        }
+    }
+
+    /** Holds the delivery of the given element until the given write is done. */
+    private void hold(Write write, Pending target) {
+        if (write.targets == null)
+            write.targets = new ArrayList<Pending>(1);
+        write.targets.add(target);
+        target.holds++;
+    }
+
+    private int insert(int serial) {
+        int size = table.size();
+        int entry = table.put(serial);
+        if (entry == elements.length) {
+            elements = Arrays.copyOf(elements, entry * 2);
+            counts = Arrays.copyOf(counts, entry * 2);
+            chains = Arrays.copyOf(chains, entry * 2);
+            pendings = Arrays.copyOf(pendings, entry * 2);
+        }
+        if (table.size() > size)
+            counts[entry] = counted ? 0 : UNCOUNTED;
+        return entry;
+    }
+
+    private void maybeWrite(Write write) {
+        if (write.openReferences > 0 || !write.ended)
+            return;
+        write.property.writeAll(write.owner.element, write.values);
+        if (write.targets != null) {
+            for (Pending each : write.targets) {
+                each.holds--;
+                this.emit(each);
+            }
+        }
+        write.owner.holds--;
+        this.emit(write.owner);
+    }
+
+    /** Answers the write of the open attribute, creating it if need be. */
+    private Write openWrite() {
+        int top = frames.depth - 1;
+        Write write = frames.writes[top];
+        if (write == null) {
+            Pending pending = this.pendingOf(top);
+            write = frames.writes[top] = new Write(pending, frames.properties[top], frames.values[top]);
+            pending.holds++;
+        }
+        return write;
+    }
+
+    private Pending pendingOf(int frame) {
+        Pending pending = frames.pendings[frame];
+        if (pending == null)
+            pending = frames.pendings[frame] = new Pending(frames.elements[frame]);
+        return pending;
+    }
+
+    @Override
+    public void primitive(Object value) {
+        frames.add(value);
+    }
+
+    public void readFrom(InputSource in) {
+        if (in.isRandomAccess()) {
+            Position origin = in.getPosition();
+            this.countReferences(in.slice(origin.index, in.length()));
+        }
+        new Parser(new Scanner(in, symbols)).accept(this);
+    }
+
+    @Override
+    public void reference(int serial) {
+        int entry = this.insert(serial);
+        if (counts[entry] > 0)
+            counts[entry]--;
+        Object element = elements[entry];
+        if (element != null) {
+            frames.add(element);
+            if (pendings[entry] != null && frames.properties[frames.depth - 1].hasOpposite())
+                this.hold(this.openWrite(), pendings[entry]);
+            if (counts[entry] == 0)
+                this.release(serial, entry);
+            return;
+        }
+        Write write = this.openWrite();
+        int reminder = free;
+        if (reminder == NONE) {
+            if (reminders == reminderLinks.length) {
+                reminderWrites = Arrays.copyOf(reminderWrites, reminders * 2);
+                reminderPositions = Arrays.copyOf(reminderPositions, reminders * 2);
+                reminderLinks = Arrays.copyOf(reminderLinks, reminders * 2);
+            }
+            reminder = reminders++;
+        } else {
+            free = reminderLinks[reminder];
+        }
+        reminderWrites[reminder] = write;
+        reminderPositions[reminder] = frames.values[frames.depth - 1].size();
+        reminderLinks[reminder] = chains[entry] - 1;
+        chains[entry] = reminder + 1;
+        write.openReferences++;
+        openReferences++;
+        frames.add(null);
+    }
+
+    @Override
+    public void reference(String name) {
+        MetaDescription type = MetaDescription.primitiveNamed(name);
+        assert type != null : name;
+        frames.add(type);
+    }
+
+    /** Forgets the given serial, once its last reference is resolved. */
+    private void release(int serial, int entry) {
+        Pending pending = pendings[entry];
+        elements[entry] = null;
+        pendings[entry] = null;
+        table.remove(serial);
+        if (pending != null) {
+            pending.holds--;
+            this.emit(pending);
+        }
+    }
+
+    /** Resolves the references to the element of the given frame. */
+    private void resolveReminders(int entry, int frame) {
+        Object element = frames.elements[frame];
+        // reverse the chain, to resolve in the order of reference
+        int reversed = NONE;
+        for (int each = chains[entry] - 1; each != NONE;) {
+            int next = reminderLinks[each];
+            reminderLinks[each] = reversed;
+            reversed = each;
+            each = next;
+        }
+        chains[entry] = 0;
+        for (int each = reversed; each != NONE;) {
+            Write write = reminderWrites[each];
+            int next = reminderLinks[each];
+            write.values.set(reminderPositions[each], element);
+            if (write.property.hasOpposite())
+                this.hold(write, this.pendingOf(frame));
+            reminderWrites[each] = null;
+            reminderLinks[each] = free;
+            free = each;
+            openReferences--;
+            write.openReferences--;
+            this.maybeWrite(write);
+            each = next;
+        }
+    }
+
+    @Override
+    public void serial(int serial) {
+        int top = frames.depth - 1;
+        if (counted && table.get(serial) == SerialTable.NONE)
+            return; // never referenced
+        int entry = this.insert(serial);
+        assert elements[entry] == null : "Duplicate serial " + serial;
+        if (chains[entry] != 0)
+            this.resolveReminders(entry, top);
+        if (counts[entry] == 0) {
+            table.remove(serial); // all references resolved
+            return;
+        }
+        elements[entry] = frames.elements[top];
+        if (counted && frames.plans[top].hasOpposites()) {
+            pendings[entry] = this.pendingOf(top);
+            pendings[entry].holds++; // until the last reference
+        }
+    }
+
+}
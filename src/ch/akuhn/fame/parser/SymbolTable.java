@@ -0,0 +1,181 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.util.Arrays;
+
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.fm3.MetaDescription;
+import ch.akuhn.fame.fm3.PropertyDescription;
+
+/**
+ * Maps names to canonical strings and dense integer ids. The {@link Scanner}
+ * resolves names and keywords directly from the bytes of its input, without
+ * creating a string for names that are already known. Hence, all names
+ * reported by a parser are identical strings if equal, and clients may use
+ * {@link #idOf(String)} (which is fast for canonical strings, as their hash
+ * code is cached) to switch on ids rather than hashing names.
+ * <p>
+ * If created from a meta-model, the table is seeded with the names of all
+ * classes and attributes, and answers the description of each class name.
+ * <p>
+ * Ids are assigned in order of first occurrence, starting with zero. This
+ * class is not thread-safe.
+ *
+ * @author akuhn
+ *
+ */
+public class SymbolTable {
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private String[] names;
+    private MetaDescription[] descriptions;
+    private int[] table; // open addressing, holds id + 1 or 0 if empty
+    private int size;
+
+    public SymbolTable() {
+        this.names = new String[64];
+        this.descriptions = new MetaDescription[64];
+        this.table = new int[128];
+        this.size = 0;
+    }
+
+    public SymbolTable(MetaRepository metamodel) {
+        this();
+        for (MetaDescription each : metamodel.allClassDescriptions()) {
+            this.describe(this.intern(each.getFullname()), each);
+            for (PropertyDescription property : each.allAttributes()) {
+                this.intern(property.getName());
+            }
+        }
+    }
+
+    private int add(String name, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            descriptions = Arrays.copyOf(descriptions, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        table[slot] = id + 1;
+        if (size * 2 > table.length)
+            this.rehash();
+        return id;
+    }
+
+    /** Answers the description of the class with the given id, or null. */
+    public MetaDescription descriptionOf(int id) {
+        return descriptions[id];
+    }
+
+    /** Sets the description of the class with the given id. */
+    public void describe(int id, MetaDescription description) {
+        descriptions[id] = description;
+    }
+
+    /**
+     * Answers the id of the given name, or <code>-1</code> if the name is
+     * unknown.
+     *
+     */
+    public int idOf(String name) {
+        int mask = table.length - 1;
+        for (int slot = hash(name) & mask;; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0)
+                return -1;
+            String each = names[entry - 1];
+            if (each == name || each.equals(name))
+                return entry - 1;
+        }
+    }
+
+    /** Answers the id of the given name, adding the name if it is unknown. */
+    public int intern(String name) {
+        int mask = table.length - 1;
+        for (int slot = hash(name) & mask;; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0)
+                return this.add(name, slot);
+            String each = names[entry - 1];
+            if (each == name || each.equals(name))
+                return entry - 1;
+        }
+    }
+
+    /**
+     * Answers the id of the name between from (inclusive) and to (exclusive)
+     * in the window of the given input, adding the name if it is unknown. Names
+     * in ASCII are looked up without creating a string, their hash is the same
+     * as {@link String#hashCode()}.
+     *
+     */
+    int lookup(InputSource in, long from, long to) {
+        int h = 0;
+        for (long each = from; each < to; each++) {
+            char ch = in.byteAt(each);
+            if (ch >= 0x80)
+                return this.intern(in.decode(from, to));
+            h = 31 * h + ch;
+        }
+        int length = (int) (to - from);
+        int mask = table.length - 1;
+        for (int slot = (h ^ (h >>> 16)) & mask;; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0)
+                return this.add(in.decode(from, to, true), slot);
+            String each = names[entry - 1];
+            if (each.length() == length && this.matches(each, in, from))
+                return entry - 1;
+        }
+    }
+
+    private boolean matches(String name, InputSource in, long from) {
+        for (int n = 0; n < name.length(); n++) {
+            if (name.charAt(n) != in.byteAt(from + n))
+                return false;
+        }
+        return true;
+    }
+
+    /** Answers the canonical string of the given id. */
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hash(names[id]) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = id + 1;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+}
@@ -48,6 +48,11 @@ public class Token {
         this.value = number;
     }
 
+    public Token(Number number) {
+        this.type = TokenType.NUMBER;
+        this.value = number;
+    }
+
     public Token(TokenType type, boolean bool) {
         this.type = type;
         this.value = bool;
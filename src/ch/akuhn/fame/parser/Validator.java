@@ -0,0 +1,173 @@
+//  Copyright (c) 2007-2008 Adrian Kuhn <akuhn(a)iam.unibe.ch>
+//
+//  This file is part of 'Fame (for Java)'.
+//
+//  'Fame (for Java)' is free software: you can redistribute it and/or modify
+//  it under the terms of the GNU Lesser General Public License as published by
+//  the Free Software Foundation, either version 3 of the License, or (at your
+//  option) any later version.
+//
+//  'Fame (for Java)' is distributed in the hope that it will be useful, but
+//  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+//  or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+//  License for more details.
+//
+//  You should have received a copy of the GNU Lesser General Public License
+//  along with 'Fame (for Java)'. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package ch.akuhn.fame.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Checks if an MSE document is well-formed, without importing it. Checks
+ * the syntax, that serials are unique, and that all references to serials
+ * are resolved. Values are not materialized (and names are resolved without
+ * creating strings), serials are kept in a table of primitive ints, and
+ * references to serials that have not yet been defined are remembered with
+ * their position only until the serial is defined. Hence validation is much
+ * faster than an import, and uses memory in the number of serials rather
+ * than in their values.
+ * <p>
+ * All violations are reported, except for syntax errors, which stop the
+ * validation. References are not checked after a syntax error, since the
+ * rest of the document is unknown.
+ * 
+ * @author akuhn
+ * 
+ */
+public class Validator {
+
+    private final InputSource in;
+    private final Scanner stream;
+
+    private SerialTable defined;
+    private SerialTable forward; // serials referenced before definition
+    private int[] firstReference; // by entry of forward
+    private int[] referenceSerials;
+    private Position[] referencePositions; // null once resolved
+    private int[] nextReference; // of the same serial, or of the free list
+    private int referenceCount;
+    private int freeReference; // first of the free list, or -1
+    private List<ParseError> violations;
+
+    public Validator(InputSource in) {
+        this.in = in;
+        this.stream = new Scanner(in);
+    }
+
+    private void define(int serial, long start) {
+        if (serial < 0) {
+            this.violation("Negative serial " + serial, start);
+        } else if (defined.get(serial) != SerialTable.NONE) {
+            this.violation("Duplicate serial " + serial, start);
+        } else {
+            defined.put(serial);
+            this.resolve(serial);
+        }
+    }
+
+    private void reference(int serial, long start) {
+        if (serial >= 0 && defined.get(serial) != SerialTable.NONE)
+            return;
+        int n = freeReference;
+        if (n >= 0) {
+            freeReference = nextReference[n];
+        } else {
+            n = referenceCount++;
+            if (n == referenceSerials.length) {
+                referenceSerials = Arrays.copyOf(referenceSerials, n * 2);
+                referencePositions = Arrays.copyOf(referencePositions,
+                        n * 2);
+                nextReference = Arrays.copyOf(nextReference, n * 2);
+            }
+        }
+        int entry = forward.get(serial);
+        if (entry == SerialTable.NONE) {
+            entry = forward.put(serial);
+            if (entry == firstReference.length)
+                firstReference = Arrays.copyOf(firstReference, entry * 2);
+            firstReference[entry] = -1;
+        }
+        referenceSerials[n] = serial;
+        referencePositions[n] = in.getPosition(start);
+        nextReference[n] = firstReference[entry];
+        firstReference[entry] = n;
+    }
+
+    /** Forgets the references to the given serial, which is now defined. */
+    private void resolve(int serial) {
+        int entry = forward.get(serial);
+        if (entry == SerialTable.NONE)
+            return;
+        int last = firstReference[entry];
+        referencePositions[last] = null;
+        while (nextReference[last] >= 0) {
+            last = nextReference[last];
+            referencePositions[last] = null;
+        }
+        nextReference[last] = freeReference;
+        freeReference = firstReference[entry];
+        forward.remove(serial);
+    }
+
+    /**
+     * Validates the document, and answers all violations in order of their
+     * position, or an empty list if the document is well-formed.
+     * 
+     */
+    public List<ParseError> validate() {
+        defined = new SerialTable();
+        forward = new SerialTable();
+        firstReference = new int[64];
+        referenceSerials = new int[64];
+        referencePositions = new Position[64];
+        nextReference = new int[64];
+        referenceCount = 0;
+        freeReference = -1;
+        violations = new ArrayList<ParseError>();
+        try {
+            MseEventReader reader = new MseEventReader(stream);
+            reader.skipValues();
+            while (reader.hasNext()) {
+                long start = stream.tokenStart();
+                in.hold(start); // keep position of event
+                EventType type = reader.next();
+                if (type == EventType.SERIAL)
+                    this.define(reader.getIndex(), start);
+                else if (type == EventType.REFERENCE)
+                    this.reference(reader.getIndex(), start);
+            }
+        } catch (ParseError ex) {
+            violations.add(ex);
+            this.sortViolations();
+            return violations;
+        }
+        for (int n = 0; n < referenceCount; n++) {
+            if (referencePositions[n] != null)
+                violations.add(new ParseError("Unresolved reference to "
+                        + referenceSerials[n], referencePositions[n]));
+        }
+        this.sortViolations();
+        return violations;
+    }
+
+    private void sortViolations() {
+        Collections.sort(violations, new Comparator<ParseError>() {
+            public int compare(ParseError a, ParseError b) {
+                long x = a.pos.index, y = b.pos.index;
+                return x < y ? -1 : x == y ? 0 : 1;
+            }
+        });
+    }
+
+    private void violation(String message, long start) {
+        violations.add(new ParseError(message, in.getPosition(start)));
+    }
+
+}
@@ -0,0 +1,80 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.parser.DebugClient;
+import ch.akuhn.fame.parser.FeedParser;
+import ch.akuhn.fame.parser.ParseError;
+import ch.akuhn.fame.parser.Parser;
+import ch.akuhn.fame.parser.Scanner;
+
+public class FeedParserTest {
+
+    private static final String MSE = "((FAMIX.Class (id: 1) (name 'Foo''s n\u00e4me') \"a comment\"\n"
+            + "(value 12.5e3 -7 true 123456789012) (type (ref: 1) (ref: String))))";
+
+    private static String serial(String mse) {
+        DebugClient client = new DebugClient();
+        new Parser(new Scanner(mse)).accept(client);
+        return client.toString();
+    }
+
+    @Test
+    public void testFeedByteByByte() throws Exception {
+        byte[] bytes = MSE.getBytes("UTF-8");
+        DebugClient client = new DebugClient();
+        FeedParser parser = new FeedParser(client);
+        for (int n = 0; n < bytes.length; n++)
+            parser.feed(bytes, n, 1);
+        parser.endOfInput();
+        assertEquals(serial(MSE), client.toString());
+    }
+
+    @Test
+    public void testFeedRandomChunks() throws Exception {
+        String mse = "(" + MSE.substring(1, MSE.length() - 1) + MSE.substring(1, MSE.length() - 1) + ")";
+        byte[] bytes = mse.getBytes("UTF-8");
+        Random random = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            DebugClient client = new DebugClient();
+            FeedParser parser = new FeedParser(client);
+            for (int n = 0; n < bytes.length;) {
+                int length = Math.min(bytes.length - n, random.nextInt(20));
+                parser.feed(bytes, n, length);
+                n += length;
+            }
+            parser.endOfInput();
+            assertEquals(serial(mse), client.toString());
+        }
+    }
+
+    @Test
+    public void testEventsBeforeEndOfInput() throws Exception {
+        DebugClient client = new DebugClient();
+        FeedParser parser = new FeedParser(client);
+        byte[] bytes = "((A (x 1)) (B".getBytes("UTF-8");
+        parser.feed(bytes, 0, bytes.length);
+        assertTrue(client.toString().contains("endElement, A"));
+    }
+
+    @Test
+    public void testEmptyInput() {
+        DebugClient client = new DebugClient();
+        new FeedParser(client).endOfInput();
+        assertEquals(serial(""), client.toString());
+    }
+
+    @Test(expected = ParseError.class)
+    public void testIncompleteInput() throws Exception {
+        FeedParser parser = new FeedParser(new DebugClient());
+        byte[] bytes = "((A (x 1))".getBytes("UTF-8");
+        parser.feed(bytes, 0, bytes.length);
+        parser.endOfInput();
+    }
+
+}
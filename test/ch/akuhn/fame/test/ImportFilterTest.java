@@ -0,0 +1,150 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.FameDescription;
+import ch.akuhn.fame.FamePackage;
+import ch.akuhn.fame.FameProperty;
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.Repository;
+import ch.akuhn.fame.parser.AbstractParserClient;
+import ch.akuhn.fame.parser.ImportFilter;
+import ch.akuhn.fame.parser.Importer;
+import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.Parser;
+import ch.akuhn.fame.parser.Scanner;
+
+@FamePackage("Test")
+public class ImportFilterTest {
+
+    @FameDescription("Node")
+    static class Node {
+        @FameProperty
+        public String name;
+        @FameProperty
+        public Node next;
+        @FameProperty
+        public Collection<Note> notes = new ArrayList<Note>();
+        @FameProperty
+        public Object any;
+    }
+
+    @FameDescription("Note")
+    static class Note {
+        @FameProperty
+        public String text;
+    }
+
+    private static final String MSE = "((Test.Note (id: 1) (text 'skip (me'))\n"
+            + "(Test.Node (id: 2) (name 'a') (next (ref: 3)) (notes (ref: 1) (Test.Note (text ')'))))\n"
+            + "(Test.Node (id: 3) (name 'b') (notes \"(\" (ref: 4) (ref: 1)) (next (ref: 2)))\n"
+            + "(Test.Note (id: 4) (text 'it''s (not) \"me\"')))";
+
+    private static Repository importMSE(ImportFilter filter) {
+        return importMSE(filter, MSE);
+    }
+
+    private static Repository importMSE(ImportFilter filter, String mse) {
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.with(Node.class);
+        metamodel.with(Note.class);
+        Importer importer = new Importer(metamodel);
+        importer.setFilter(filter);
+        importer.readFrom(InputSource.fromString(mse));
+        return importer.getResult();
+    }
+
+    private static Map<String, Node> nodes(Repository model) {
+        Map<String, Node> nodes = new HashMap<String, Node>();
+        for (Node each : model.all(Node.class))
+            nodes.put(each.name, each);
+        return nodes;
+    }
+
+    @Test
+    public void testSkipAttributes() {
+        Repository model = importMSE(new ImportFilter().select("Test.Node", "name"));
+        assertEquals(2, model.size());
+        Map<String, Node> nodes = nodes(model);
+        assertNull(nodes.get("a").next);
+        assertTrue(nodes.get("b").notes.isEmpty());
+    }
+
+    @Test
+    public void testDropReferencesToSkippedElements() {
+        Repository model = importMSE(new ImportFilter().select("Test.Node"));
+        assertEquals(2, model.size());
+        Map<String, Node> nodes = nodes(model);
+        assertSame(nodes.get("b"), nodes.get("a").next);
+        assertSame(nodes.get("a"), nodes.get("b").next);
+        assertTrue(nodes.get("a").notes.isEmpty());
+        assertTrue(nodes.get("b").notes.isEmpty());
+    }
+
+    @Test
+    public void testStubReferencesToSkippedElements() {
+        ImportFilter filter = new ImportFilter().select("Test.Node");
+        filter.setPolicy(ImportFilter.Policy.STUB);
+        Repository model = importMSE(filter);
+        assertEquals(4, model.size());
+        Map<String, Node> nodes = nodes(model);
+        Note first = nodes.get("a").notes.iterator().next();
+        assertNull(first.text);
+        assertEquals(1, nodes.get("a").notes.size());
+        List<Note> notes = new ArrayList<Note>(nodes.get("b").notes);
+        assertEquals(2, notes.size());
+        assertSame(first, notes.get(1));
+        assertTrue(model.getElements().contains(notes.get(0)));
+    }
+
+    @Test
+    public void testStubOfFirstReference() {
+        ImportFilter filter = new ImportFilter().select("Test.Node");
+        filter.setPolicy(ImportFilter.Policy.STUB);
+        Repository model = importMSE(filter, "((Test.Node (id: 1) (name 'a') (notes (ref: 3)))"
+                + "(Test.Node (id: 2) (name 'b') (any (ref: 3)))" + "(Test.Note (id: 3) (text 'x')))");
+        Map<String, Node> nodes = nodes(model);
+        Note stub = nodes.get("a").notes.iterator().next();
+        assertSame(stub, nodes.get("b").any);
+    }
+
+    @Test(expected = AssertionError.class)
+    public void testDanglingReferenceWithFilter() {
+        importMSE(new ImportFilter().select("Test.Node"), "((Test.Node (id: 1) (next (ref: 9))) (Test.Note (id: 2)))");
+    }
+
+    @Test
+    public void testSerialsOfSkippedAttributes() {
+        ImportFilter filter = new ImportFilter().select("Test.Node", "name", "next");
+        Repository model = importMSE(filter, "((Test.Node (id: 1) (name 'a') (next (ref: 3))"
+                + " (notes (Test.Note(id:3)(text 'x')))))");
+        assertEquals(1, model.size());
+        assertNull(nodes(model).get("a").next);
+    }
+
+    @Test
+    public void testSkipLastElementOfSequence() {
+        Parser parser = new Parser(new Scanner("(Test.Note (text 'x')) (Test.Node (name 'a')) (Test.Note)"));
+        parser.setFilter(new ImportFilter().select("Test.Node"));
+        final List<String> names = new ArrayList<String>();
+        parser.acceptElements(new AbstractParserClient() {
+            @Override
+            public void beginElement(String name) {
+                names.add(name);
+            }
+        });
+        assertEquals("[Test.Node]", names.toString());
+    }
+
+}
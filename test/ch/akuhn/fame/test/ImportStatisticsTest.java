@@ -0,0 +1,83 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.FameDescription;
+import ch.akuhn.fame.FamePackage;
+import ch.akuhn.fame.FameProperty;
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.fm3.MetaDescription;
+import ch.akuhn.fame.fm3.PropertyDescription;
+import ch.akuhn.fame.parser.ImportStatistics;
+import ch.akuhn.fame.parser.Importer;
+import ch.akuhn.fame.parser.InputSource;
+
+@FamePackage("Test")
+public class ImportStatisticsTest {
+
+    @FameDescription("Node")
+    static class Node {
+        @FameProperty
+        public String name;
+        @FameProperty
+        public Node next;
+        @FameProperty
+        public Collection<Node> friends = new ArrayList<Node>();
+    }
+
+    private static final String MSE = "((Test.Node (id: 1) (name 'a') (next (ref: 3)) (friends (ref: 2) (ref: 3)))"
+            + "(Test.Node (id: 2) (name 'b') (next (ref: 3)))"
+            + "(Test.Node (id: 3) (name 'c') (friends (Test.Node (name 'd')))))";
+
+    @Test
+    public void testStatistics() {
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.with(Node.class);
+        Importer importer = new Importer(metamodel);
+        ImportStatistics statistics = new ImportStatistics();
+        importer.setStatistics(statistics);
+        importer.readFrom(InputSource.fromString(MSE));
+        assertEquals(MSE.length(), statistics.getBytes());
+        assertEquals(70, statistics.getTokens());
+        assertEquals(4, statistics.getElements());
+        MetaDescription node = metamodel.descriptionNamed("Test.Node");
+        assertEquals(4, statistics.getElementsPerType().get(node).getCount());
+        assertEquals(3, statistics.getOpenReferencesPeak());
+        assertEquals(3, statistics.getWriters().size());
+        PropertyDescription friends = node.attributeNamed("friends");
+        assertEquals(2, statistics.getWriters().get(friends).getCount());
+        long phases = 0;
+        for (ImportStatistics.Phase each : ImportStatistics.Phase.values()) {
+            assertTrue(statistics.getNanos(each) >= 0);
+            phases += statistics.getNanos(each);
+        }
+        assertEquals(statistics.getTotalNanos(), phases);
+        assertTrue(statistics.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void testSamplingOfRegularModel() {
+        StringBuilder mse = new StringBuilder("(");
+        for (int n = 1; n <= 10 * ImportStatistics.SAMPLING; n++)
+            mse.append("(Test.Node (id: " + n + ") (name 'x') (next (ref: " + n + ")) (friends (ref: " + n + ")))");
+        mse.append(")");
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.with(Node.class);
+        Importer importer = new Importer(metamodel);
+        ImportStatistics statistics = new ImportStatistics();
+        importer.setStatistics(statistics);
+        importer.readFrom(InputSource.fromString(mse.toString()));
+        MetaDescription node = metamodel.descriptionNamed("Test.Node");
+        assertTrue(statistics.getElementsPerType().get(node).getNanos() > 0);
+        assertEquals(3, statistics.getWriters().size());
+        for (ImportStatistics.Counter each : statistics.getWriters().values())
+            assertTrue(each.getNanos() > 0);
+    }
+
+}
@@ -0,0 +1,69 @@
+package ch.akuhn.fame.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import ch.akuhn.fame.FameDescription;
+import ch.akuhn.fame.FamePackage;
+import ch.akuhn.fame.FameProperty;
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.Repository;
+import ch.akuhn.fame.parser.InputSource;
+
+/**
+ * Imports a model with one million elements, each of which is referenced
+ * once before and once after it is defined, and reports import time and peak heap. Run with
+ * <tt>java -ea:none -Xmx2g</tt>.
+ * 
+ */
+@FamePackage("Bench")
+public class ImporterBenchmark {
+
+    @FameDescription("Node")
+    static class Node {
+        @FameProperty
+        public String name;
+        @FameProperty
+        public Node next;
+        @FameProperty
+        public Node previous;
+    }
+
+    private static final int DISTANCE = 1000; // keeps chains short
+
+    private static byte[] document(int count) throws Exception {
+        StringBuilder buf = new StringBuilder("(\n");
+        for (int n = 1; n <= count; n++) {
+            buf.append("(Bench.Node (id: ").append(n).append(") (name 'node").append(n).append("')");
+            if (n + DISTANCE <= count)
+                buf.append(" (next (ref: ").append(n + DISTANCE).append("))");
+            if (n > DISTANCE)
+                buf.append(" (previous (ref: ").append(n - DISTANCE).append("))");
+            buf.append(")\n");
+        }
+        return buf.append(")").toString().getBytes("UTF-8");
+    }
+
+    public static void main(String... args) throws Exception {
+        byte[] bytes = document(1000000);
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.with(Node.class);
+        for (int round = 0; round < 5; round++) {
+            System.gc();
+            for (MemoryPoolMXBean each : ManagementFactory.getMemoryPoolMXBeans())
+                each.resetPeakUsage();
+            long time = System.nanoTime();
+            Repository model = new Repository(metamodel);
+            model.importMSE(InputSource.fromBytes(bytes));
+            time = System.nanoTime() - time;
+            long peak = 0;
+            for (MemoryPoolMXBean each : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (each.getType() == MemoryType.HEAP)
+                    peak += each.getPeakUsage().getUsed();
+            }
+            System.out.printf("%d elements in %.0f ms, peak heap %d MB%n", model.size(), time / 1e6, peak >> 20);
+        }
+    }
+
+}
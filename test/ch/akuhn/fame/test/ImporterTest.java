@@ -0,0 +1,93 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.FameDescription;
+import ch.akuhn.fame.FamePackage;
+import ch.akuhn.fame.FameProperty;
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.Repository;
+
+@FamePackage("Test")
+public class ImporterTest {
+
+    @FameDescription("Node")
+    static class Node {
+        @FameProperty
+        public String name;
+        @FameProperty
+        public Node next;
+        @FameProperty
+        public Collection<Node> friends = new ArrayList<Node>();
+    }
+
+    private static Map<String, Node> importMSE(String mse) {
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.with(Node.class);
+        Repository model = new Repository(metamodel);
+        model.importMSE(mse);
+        Map<String, Node> nodes = new HashMap<String, Node>();
+        for (Object each : model.getElements())
+            nodes.put(((Node) each).name, (Node) each);
+        return nodes;
+    }
+
+    @Test
+    public void testForwardReferences() {
+        Map<String, Node> nodes = importMSE("((Test.Node (id: 1) (name 'a') (next (ref: 3)) (friends (ref: 2) (ref: 1) (ref: 3)))"
+                + "(Test.Node (id: 3) (name 'c') (next (ref: 1)) (friends (ref: 3)))"
+                + "(Test.Node (id: 2) (name 'b') (next (ref: 3))))");
+        Node a = nodes.get("a"), b = nodes.get("b"), c = nodes.get("c");
+        assertSame(c, a.next);
+        assertSame(a, c.next);
+        assertSame(c, b.next);
+        assertEquals(3, a.friends.size());
+        assertEquals("[b, a, c]", names(a.friends));
+        assertEquals("[c]", names(c.friends));
+    }
+
+    @Test
+    public void testManySparseSerials() {
+        StringBuilder buf = new StringBuilder("(");
+        int count = 5000;
+        for (int n = 0; n < count; n++) {
+            int serial = n * 1024;
+            buf.append("(Test.Node (id: ").append(serial).append(") (name '").append(n).append("')");
+            buf.append(" (next (ref: ").append((n ^ 1) * 1024).append(")))");
+        }
+        Map<String, Node> nodes = importMSE(buf.append(")").toString());
+        assertEquals(count, nodes.size());
+        for (int n = 0; n < count; n++)
+            assertEquals(String.valueOf(n ^ 1), nodes.get(String.valueOf(n)).next.name);
+    }
+
+    @Test
+    public void testImportIntoRepository() {
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.with(Node.class);
+        Repository model = new Repository(metamodel);
+        Node existing = new Node();
+        model.add(existing);
+        model.importMSE("((Test.Node (id: 1) (name 'a') (friends (Test.Node (name 'b')))))");
+        assertEquals(3, model.size());
+        model.importMSE("((Test.Node (id: 1) (name 'c')))");
+        assertEquals(4, model.size());
+        assertEquals(true, model.getElements().contains(existing));
+    }
+
+    private static String names(Collection<Node> nodes) {
+        Collection<String> names = new ArrayList<String>();
+        for (Node each : nodes)
+            names.add(each.name);
+        return names.toString();
+    }
+
+}
@@ -0,0 +1,215 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.Repository;
+import ch.akuhn.fame.Tower;
+import ch.akuhn.fame.fm3.MetaDescription;
+import ch.akuhn.fame.parser.DebugClient;
+import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.ParseError;
+import ch.akuhn.fame.parser.Parser;
+import ch.akuhn.fame.parser.Scanner;
+import ch.akuhn.fame.parser.Token;
+import ch.akuhn.fame.parser.TokenType;
+
+public class InputSourceTest {
+
+    private static final String MSE = "((FAMIX.Class (id: 1) (name 'Foo''s name') (value 12.5e3 -7 true nil)))";
+
+    /** Reader that hands out one char per call, forcing a refill for every character. */
+    private static Reader trickle(String string) {
+        final Reader reader = new StringReader(string);
+        return new Reader() {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return reader.read(cbuf, off, Math.min(len, 1));
+            }
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    private static String tokens(Scanner scanner) {
+        StringBuilder buf = new StringBuilder();
+        for (Token t = scanner.nextOrEOF(); t.type != TokenType.EOF; t = scanner.nextOrEOF()) {
+            buf.append(t).append('\n');
+        }
+        return buf.toString();
+    }
+
+    @Test
+    public void testStreamingTokensStraddleWindow() {
+        String expected = tokens(new Scanner(MSE));
+        assertEquals(expected, tokens(new Scanner(InputSource.fromReader(trickle(MSE)))));
+    }
+
+    @Test
+    public void testErrorPositionCountsAllLineBreaks() {
+        String mse = "(\n(A (b 'x\ny'))\n (B \"note\n\" (c\n  1 2 foo)))";
+        for (InputSource in : new InputSource[] { InputSource.fromString(mse), InputSource.fromReader(trickle(mse)) }) {
+            try {
+                new Parser(new Scanner(in)).accept(new DebugClient());
+                fail();
+            } catch (ParseError ex) {
+                assertEquals(6, ex.pos.line);
+                assertEquals(7, ex.pos.column);
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testInc2() {
+        InputSource in = InputSource.fromString("a\nb");
+        in.inc2();
+        in.inc2();
+        assertEquals('b', in.peek());
+        assertEquals(2, in.getPosition().line);
+    }
+
+    @Test
+    public void testCompressedInput() throws IOException {
+        String expected = tokens(new Scanner(MSE));
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(new GZIPOutputStream(gzip), "UTF-8");
+        writer.write(MSE);
+        writer.close();
+        ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+        writer = new OutputStreamWriter(new DeflaterOutputStream(deflate), "UTF-8");
+        writer.write(MSE);
+        writer.close();
+        assertEquals(expected, tokens(new Scanner(InputSource.fromBytes(gzip.toByteArray()))));
+        assertEquals(expected, tokens(new Scanner(InputSource.fromDeflated(new ByteArrayInputStream(deflate
+                .toByteArray())))));
+        assertEquals(expected, tokens(new Scanner(InputSource.fromInputStream(new ByteArrayInputStream(gzip
+                .toByteArray())))));
+        File file = File.createTempFile("compressed", ".mse.gz");
+        try {
+            OutputStream output = new FileOutputStream(file);
+            output.write(gzip.toByteArray());
+            output.close();
+            assertEquals(expected, tokens(new Scanner(InputSource.fromFile(file))));
+            assertEquals(expected, tokens(new Scanner(InputSource.fromFile(file, true))));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDeflatedFile() throws IOException {
+        String expected = tokens(new Scanner(MSE));
+        File file = File.createTempFile("compressed", ".mse.zz");
+        try {
+            Writer writer = new OutputStreamWriter(new DeflaterOutputStream(new FileOutputStream(file)), "UTF-8");
+            writer.write(MSE);
+            writer.close();
+            assertEquals(expected, tokens(new Scanner(InputSource.fromFile(file))));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTextLikeZlibHeader() throws IOException {
+        String mse = "(S (name 'x'))"; // 0x28 0x53 is a valid zlib header
+        String expected = tokens(new Scanner(mse));
+        byte[] bytes = mse.getBytes("UTF-8");
+        assertEquals(expected, tokens(new Scanner(InputSource.fromBytes(bytes))));
+        assertEquals(expected, tokens(new Scanner(InputSource.fromInputStream(new ByteArrayInputStream(bytes)))));
+    }
+
+    @Test
+    public void testCompressedExport() throws IOException {
+        Repository repository = new Tower().getMetamodel();
+        File file = File.createTempFile("export", ".mse.gz");
+        try {
+            repository.exportMSEFile(file.getPath());
+            InputStream input = new FileInputStream(file);
+            assertEquals(0x1F, input.read());
+            input.close();
+            String expected = tokens(new Scanner(repository.exportMSE()));
+            assertEquals(expected, tokens(new Scanner(InputSource.fromFile(file, true))));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testPlainExportIsUTF8() throws IOException {
+        Repository repository = new Tower().getMetamodel();
+        repository.add(new MetaDescription("Caf\u00e9"));
+        File file = File.createTempFile("export", ".mse");
+        try {
+            repository.exportMSEFile(file.getPath());
+            byte[] bytes = new byte[(int) file.length()];
+            InputStream input = new FileInputStream(file);
+            assertEquals(bytes.length, input.read(bytes));
+            input.close();
+            assertTrue(new String(bytes, "UTF-8").contains("'Caf\u00e9'"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStreamingPosition() {
+        Scanner scanner = new Scanner(InputSource.fromReader(trickle("(\n  (\n\n   Name")));
+        scanner.nextOrEOF();
+        scanner.nextOrEOF();
+        scanner.hasNext();
+        assertEquals(4, scanner.pos().line);
+        assertEquals(4, scanner.pos().column);
+    }
+
+    @Test
+    public void testMappedSegmentsStraddleTokens() throws IOException {
+        File file = File.createTempFile("segments", ".mse");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1");
+        writer.write(MSE);
+        writer.close();
+        String expected = tokens(new Scanner(MSE));
+        for (int segmentSize = 1; segmentSize < 12; segmentSize++) {
+            assertEquals(expected, tokens(new Scanner(InputSource.fromFile(file, segmentSize))));
+        }
+    }
+
+    @Test
+    public void testByteOrderMark() throws IOException {
+        String mse = "(Name '\u00C4\u20AC\uD834\uDD1E')";
+        String expected = tokens(new Scanner(mse));
+        byte[] utf8 = ("\uFEFF" + mse).getBytes("UTF-8");
+        byte[] utf16 = ("\uFEFF" + mse).getBytes("UTF-16LE");
+        assertEquals(expected, tokens(new Scanner(InputSource.fromBytes(utf8))));
+        assertEquals(expected, tokens(new Scanner(InputSource.fromBytes(utf16))));
+        assertEquals(expected, tokens(new Scanner(InputSource.fromInputStream(new ByteArrayInputStream(utf16)))));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testStreamingCannotRewind() {
+        InputSource.fromReader(new StringReader("()")).rewind();
+    }
+
+}
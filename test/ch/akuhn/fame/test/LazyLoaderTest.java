@@ -0,0 +1,151 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.akuhn.fame.FameDescription;
+import ch.akuhn.fame.FamePackage;
+import ch.akuhn.fame.FameProperty;
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.Repository;
+import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.LazyLoader;
+import ch.akuhn.fame.parser.OffsetIndex;
+
+@FamePackage("Test")
+public class LazyLoaderTest {
+
+    @FameDescription("Node")
+    static class Node {
+        @FameProperty
+        public String name;
+        @FameProperty
+        public Node next;
+        @FameProperty
+        public Collection<Node> children = new ArrayList<Node>();
+    }
+
+    private static final String MSE = "((Test.Node (id: 1) (name 'a') (next (ref: 3))\n"
+            + "(children (Test.Node (id: 2) (name 'b') (next (ref: 1))) (Test.Node (name 'c'))))\n"
+            + "(Test.Node (id: 3) (name 'd') (children (ref: 2))))";
+
+    private File file;
+    private Repository model;
+
+    @Before
+    public void createFile() throws Exception {
+        file = File.createTempFile("lazy", ".mse");
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(MSE.getBytes("UTF-8"));
+        output.close();
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.with(Node.class);
+        model = new Repository(metamodel);
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+        OffsetIndex.sidecarOf(file).delete();
+    }
+
+    private Map<Integer, Node> bySerial(LazyLoader loader) {
+        Map<Integer, Node> nodes = new HashMap<Integer, Node>();
+        for (Object each : model.getElements()) {
+            loader.load(each);
+            nodes.put(((Node) each).name.charAt(0) - 'a' + 1, (Node) each);
+        }
+        return nodes;
+    }
+
+    @Test
+    public void testLoadOnRead() {
+        LazyLoader loader = model.importMSEFileLazily(file.getPath());
+        try {
+            assertEquals(3, model.size());
+            for (Object each : model.getElements()) {
+                assertNull(((Node) each).name);
+                assertFalse(loader.isLoaded(each));
+            }
+            Object some = model.getElements().iterator().next();
+            String name = model.read("name", some);
+            assertTrue(loader.isLoaded(some));
+            assertEquals(name, ((Node) some).name);
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testReferencesAndNesting() {
+        LazyLoader loader = model.importMSEFileLazily(file.getPath());
+        Node a = null;
+        for (Object each : new ArrayList<Object>(model.getElements())) {
+            if ("a".equals(model.read("name", each)))
+                a = (Node) each;
+        }
+        assertEquals(4, model.size()); // including nested 'c'
+        assertEquals(2, a.children.size());
+        Node b = a.children.iterator().next();
+        assertTrue(loader.isLoaded(b));
+        assertEquals("b", b.name);
+        assertSame(a, b.next);
+        Node d = a.next;
+        assertEquals("d", model.read("name", d));
+        assertSame(b, d.children.iterator().next());
+    }
+
+    @Test
+    public void testSidecar() {
+        OffsetIndex.build(InputSource.fromFile(file)).write(OffsetIndex.sidecarOf(file));
+        LazyLoader loader = model.importMSEFileLazily(file.getPath());
+        loader.loadAll();
+        Map<Integer, Node> nodes = bySerial(loader);
+        assertSame(nodes.get(4), nodes.get(1).next);
+        assertSame(nodes.get(1), nodes.get(2).next);
+        for (Object each : model.getElements())
+            assertTrue(loader.isLoaded(each));
+    }
+
+    @Test
+    public void testOpenInSegments() {
+        LazyLoader loader = LazyLoader.open(model, file, 16);
+        loader.loadAll();
+        assertFalse(loader.isOpen());
+        Map<Integer, Node> nodes = bySerial(loader);
+        assertEquals(4, nodes.size());
+        assertSame(nodes.get(4), nodes.get(1).next);
+        assertSame(nodes.get(1), nodes.get(2).next);
+    }
+
+    @Test
+    public void testWriteSidecarOnOpen() {
+        assertFalse(OffsetIndex.sidecarOf(file).exists());
+        model.importMSEFileLazily(file.getPath()).close();
+        assertTrue(OffsetIndex.sidecarOf(file).exists());
+        assertEquals(3, OffsetIndex.read(OffsetIndex.sidecarOf(file)).size());
+    }
+
+    @Test
+    public void testExportLoadsAll() {
+        LazyLoader loader = model.importMSEFileLazily(file.getPath());
+        String mse = model.exportMSE();
+        assertFalse(loader.isOpen());
+        assertTrue(mse, mse.contains("'d'"));
+    }
+
+}
@@ -0,0 +1,183 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.parser.AbstractParserClient;
+import ch.akuhn.fame.parser.DebugClient;
+import ch.akuhn.fame.parser.EventType;
+import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.MseEventReader;
+import ch.akuhn.fame.parser.ParseClient;
+import ch.akuhn.fame.parser.ParseError;
+import ch.akuhn.fame.parser.Parser;
+import ch.akuhn.fame.parser.Scanner;
+
+public class MseEventReaderTest {
+
+    private static final String MSE = "((FAMIX.Class (id: 1) (name 'Foo') (value 12.5e3 -7 true) "
+            + "(inner (FAMIX.Method (id: 2) (type (ref: 1) (ref: Object))))) (FAMIX.Package))";
+
+    private static final String FAMIX = "ch/unibe/fame/resources/FAMIX22.fm3.mse";
+
+    private static void pull(MseEventReader reader, ParseClient client) {
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+            case BEGIN_ATTRIBUTE:
+                client.beginAttribute(reader.getName());
+                break;
+            case BEGIN_DOCUMENT:
+                client.beginDocument();
+                break;
+            case BEGIN_ELEMENT:
+                client.beginElement(reader.getName());
+                break;
+            case DIRECTIVE:
+                client.directive(reader.getName(), reader.getParameters());
+                break;
+            case END_ATTRIBUTE:
+                client.endAttribute(reader.getName());
+                break;
+            case END_DOCUMENT:
+                client.endDocument();
+                break;
+            case END_ELEMENT:
+                client.endElement(reader.getName());
+                break;
+            case NAMED_REFERENCE:
+                client.reference(reader.getName());
+                break;
+            case PRIMITIVE:
+                client.primitive(reader.getValue());
+                break;
+            case REFERENCE:
+                client.reference(reader.getIndex());
+                break;
+            case SERIAL:
+                client.serial(reader.getIndex());
+                break;
+            }
+        }
+    }
+
+    private static String pushed(InputSource in) {
+        DebugClient client = new DebugClient();
+        new Parser(new Scanner(in)).accept(client);
+        return client.toString();
+    }
+
+    private static String pulled(InputSource in) {
+        DebugClient client = new DebugClient();
+        pull(new MseEventReader(in), client);
+        return client.toString();
+    }
+
+    private static String errorOf(String mse) {
+        try {
+            pulled(InputSource.fromString(mse));
+        } catch (ParseError ex) {
+            return ex.getMessage();
+        }
+        fail();
+        return null;
+    }
+
+    @Test
+    public void testSameEventsAsParser() {
+        assertEquals(pushed(InputSource.fromString(MSE)), pulled(InputSource.fromString(MSE)));
+        assertEquals(pushed(InputSource.fromResource(FAMIX)), pulled(InputSource.fromResource(FAMIX)));
+        assertEquals(pushed(InputSource.fromString("")), pulled(InputSource.fromString("")));
+        assertEquals(pushed(InputSource.fromString("()")), pulled(InputSource.fromString("()")));
+    }
+
+    @Test
+    public void testDirective() {
+        MseEventReader reader = new MseEventReader(InputSource.fromString("(@name 'a' b) ()"));
+        assertEquals(EventType.DIRECTIVE, reader.next());
+        assertEquals("@name", reader.getName());
+        assertEquals(2, reader.getParameters().length);
+        assertEquals(EventType.BEGIN_DOCUMENT, reader.next());
+        assertEquals(EventType.END_DOCUMENT, reader.next());
+        assertFalse(reader.hasNext());
+    }
+
+    @Test
+    public void testPeek() {
+        MseEventReader reader = new MseEventReader(InputSource.fromString(MSE));
+        assertEquals(EventType.BEGIN_DOCUMENT, reader.next());
+        assertEquals(EventType.BEGIN_ELEMENT, reader.next());
+        assertEquals("FAMIX.Class", reader.getName());
+        assertEquals(EventType.SERIAL, reader.peek());
+        assertEquals(EventType.SERIAL, reader.peek());
+        assertEquals("FAMIX.Class", reader.getName());
+        assertEquals(EventType.SERIAL, reader.next());
+        assertEquals(1, reader.getIndex());
+    }
+
+    @Test
+    public void testLockStep() {
+        MseEventReader a = new MseEventReader(InputSource.fromResource(FAMIX));
+        MseEventReader b = new MseEventReader(InputSource.fromResource(FAMIX));
+        int count = 0;
+        while (a.hasNext()) {
+            assertTrue(b.hasNext());
+            assertEquals(a.next(), b.next());
+            assertEquals(a.getName(), b.getName());
+            count++;
+        }
+        assertFalse(b.hasNext());
+        assertTrue(count > 1000);
+    }
+
+    @Test
+    public void testDeepNesting() {
+        int depth = 100000;
+        StringBuilder buf = new StringBuilder("(");
+        for (int n = 0; n < depth; n++)
+            buf.append("(A (x ");
+        for (int n = 0; n < depth; n++)
+            buf.append("))");
+        buf.append(")");
+        final int[] count = new int[1];
+        new Parser(new Scanner(buf)).accept(new AbstractParserClient() {
+            @Override
+            public void beginElement(String name) {
+                count[0]++;
+            }
+        });
+        assertEquals(depth, count[0]);
+    }
+
+    @Test
+    public void testSameErrorAsParser() {
+        String mse = "((FAMIX.Class (name Foo)))";
+        String expected = null;
+        try {
+            pushed(InputSource.fromString(mse));
+            fail();
+        } catch (ParseError ex) {
+            expected = ex.getMessage();
+        }
+        try {
+            pulled(InputSource.fromString(mse));
+            fail();
+        } catch (ParseError ex) {
+            assertEquals(expected, ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testOpenWithoutName() {
+        assertEquals("Expected CLOSE, found OPEN at 1:2", errorOf("(( (b c)))"));
+        assertEquals("Expected CLOSE, found OPEN at 1:13", errorOf("((A (id: 1) ( (b 1))))"));
+        assertEquals("Expected CLOSE, found OPEN at 1:13", errorOf("((A (id: 1) (id: 2)))"));
+        assertEquals("Expected CLOSE, found OPEN at 1:11", errorOf("((A (b 1) ( ))"));
+        assertEquals("Expected CLOSE, found OPEN at 1:12", errorOf("((A (b 1)) (1))"));
+        assertEquals("Expected CLOSE, found OPEN at 1:8", errorOf("((A (b (\n\"c\" 1))))"));
+    }
+
+}
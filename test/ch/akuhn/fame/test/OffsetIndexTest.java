@@ -0,0 +1,108 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.parser.DebugClient;
+import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.OffsetIndex;
+import ch.akuhn.fame.parser.Parser;
+import ch.akuhn.fame.parser.Scanner;
+
+public class OffsetIndexTest {
+
+    private static final String MSE = "((FAMIX.Class (id: 1) (name 'Foo''s n\u00e4me') \"a (comment\"\n"
+            + "(methods (FAMIX.Method (id: 3) (name 'bar')))) (FAMIX.Class (id: 2) (value 12.5e3 (ref: 1)))\n"
+            + "(FAMIX.Note (text 'no serial')))";
+
+    private static String elements(String mse) {
+        DebugClient client = new DebugClient();
+        new Parser(new Scanner(mse)).acceptElements(client);
+        return client.toString();
+    }
+
+    private static String element(OffsetIndex index, InputSource in, int serial) {
+        DebugClient client = new DebugClient();
+        index.accept(in, serial, client);
+        return client.toString();
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        OffsetIndex index = OffsetIndex.build(InputSource.fromString(MSE));
+        assertEquals(3, index.size());
+        assertTrue(index.contains(3));
+        assertFalse(index.contains(4));
+        assertEquals("FAMIX.Class", index.typeOf(2));
+        assertEquals("FAMIX.Method", index.typeOf(3));
+        assertArrayEquals(new int[] { 1, 2 }, index.serialsOf("FAMIX.Class"));
+        assertArrayEquals(new int[0], index.serialsOf("FAMIX.Note"));
+        assertEquals(MSE.substring(0, MSE.indexOf("(FAMIX.Method")).getBytes("UTF-8").length, index.offsetOf(3));
+        assertEquals("(FAMIX.Method (id: 3) (name 'bar'))".length(), index.lengthOf(3));
+    }
+
+    @Test
+    public void testAcceptElement() {
+        InputSource in = InputSource.fromString(MSE);
+        OffsetIndex index = OffsetIndex.build(in);
+        assertEquals(elements("(FAMIX.Class (id: 2) (value 12.5e3 (ref: 1)))"), element(index, in, 2));
+        assertEquals(elements("(FAMIX.Method (id: 3) (name 'bar'))"), element(index, in, 3));
+    }
+
+    @Test
+    public void testSidecar() throws Exception {
+        File file = File.createTempFile("offsets", ".mse");
+        File sidecar = OffsetIndex.sidecarOf(file);
+        try {
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(MSE.getBytes("UTF-8"));
+            output.close();
+            OffsetIndex.build(InputSource.fromFile(file)).write(sidecar);
+            OffsetIndex index = OffsetIndex.read(sidecar);
+            assertEquals(3, index.size());
+            assertArrayEquals(new int[] { 3 }, index.serialsOf("FAMIX.Method"));
+            String expected = elements("(FAMIX.Class (id: 1) (name 'Foo''s n\u00e4me') \"a (comment\"\n"
+                    + "(methods (FAMIX.Method (id: 3) (name 'bar'))))");
+            assertEquals(expected, element(index, InputSource.fromFile(file), 1));
+        } finally {
+            file.delete();
+            sidecar.delete();
+        }
+    }
+
+    @Test
+    public void testAcceptAfterBuildingFromSegments() throws Exception {
+        File file = File.createTempFile("offsets", ".mse");
+        try {
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(MSE.getBytes("UTF-8"));
+            output.close();
+            InputSource in = InputSource.fromFile(file, 16);
+            OffsetIndex index = OffsetIndex.build(in);
+            assertTrue(in.isRandomAccess());
+            assertEquals(elements("(FAMIX.Class (id: 2) (value 12.5e3 (ref: 1)))"), element(index, in, 2));
+            in.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMetamodel() throws Exception {
+        URL url = ClassLoader.getSystemResource("ch/unibe/fame/resources/FAMIX22.fm3.mse");
+        InputSource in = InputSource.fromFile(new File(url.toURI()));
+        OffsetIndex index = OffsetIndex.build(in);
+        assertTrue(index.size() > 0);
+        for (int serial : index.serialsOf("FM3.Class"))
+            assertTrue(element(index, in, serial).contains("beginElement, FM3.Class"));
+    }
+
+}
@@ -0,0 +1,187 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.FameDescription;
+import ch.akuhn.fame.FamePackage;
+import ch.akuhn.fame.FameProperty;
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.Repository;
+import ch.akuhn.fame.internal.MultivalueSet;
+import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.ParallelImporter;
+
+@FamePackage("Test")
+public class ParallelImporterTest {
+
+    @FameDescription("Owner")
+    static class Owner {
+        @FameProperty
+        public String name;
+        @FameProperty
+        public Owner friend;
+        private Collection<Item> items = new MultivalueSet<Item>() {
+            @Override
+            protected void clearOpposite(Item e) {
+                e.owner = null;
+            }
+
+            @Override
+            protected void setOpposite(Item e) {
+                e.owner = Owner.this;
+            }
+        };
+
+        @FameProperty(opposite = "owner")
+        public Collection<Item> getItems() {
+            return items;
+        }
+
+        public void setItems(Collection<? extends Item> items) {
+            this.items.clear();
+            this.items.addAll(items);
+        }
+    }
+
+    @FameDescription("Item")
+    static class Item {
+        @FameProperty
+        public String name;
+        @FameProperty
+        public double weight;
+        private Owner owner;
+
+        @FameProperty(opposite = "items")
+        public Owner getOwner() {
+            return owner;
+        }
+
+        public void setOwner(Owner owner) {
+            if (this.owner == owner)
+                return;
+            if (this.owner != null)
+                this.owner.getItems().remove(this);
+            this.owner = owner;
+            if (owner != null)
+                owner.getItems().add(this);
+        }
+    }
+
+    private static MetaRepository metamodel() {
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.withAll(Owner.class, Item.class);
+        return metamodel;
+    }
+
+    /** Owners with odd serials, items with even serials, owner n has item n - 7. */
+    private static String document(int count) {
+        StringBuilder buf = new StringBuilder("(\n");
+        for (int n = 0; n < count; n++) {
+            buf.append("(Test.Owner (id: ").append(2 * n + 1).append(") (name 'o").append(n).append("')");
+            buf.append(" (friend (ref: ").append(2 * ((n + count / 2) % count) + 1).append("))");
+            buf.append(" (items (Test.Item (name 'inner").append(n).append("') (weight 0.5))");
+            buf.append(" (ref: ").append(2 * ((n + count - 7) % count) + 2).append(")))\n");
+            buf.append("(Test.Item (id: ").append(2 * n + 2).append(") (name 'i").append(n).append("')");
+            buf.append(" (owner (ref: ").append(2 * ((n + 7) % count) + 1).append(")))\n");
+        }
+        return buf.append(")").toString();
+    }
+
+    private static Repository importInParallel(String mse, int chunkSize) {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ParallelImporter importer = new ParallelImporter(metamodel());
+            importer.setExecutor(executor, 4);
+            importer.setChunkSize(chunkSize);
+            importer.readFrom(InputSource.fromString(mse));
+            return importer.getResult();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Map<String, Object> byName(Repository model) {
+        Map<String, Object> elements = new HashMap<String, Object>();
+        for (Object each : model.getElements())
+            elements.put(each instanceof Owner ? ((Owner) each).name : ((Item) each).name, each);
+        return elements;
+    }
+
+    private static String itemsOf(Owner owner) {
+        Collection<String> names = new TreeSet<String>();
+        for (Item each : owner.getItems()) {
+            assertSame(owner, each.getOwner());
+            names.add(each.name);
+        }
+        return names.toString();
+    }
+
+    @Test
+    public void testSameModelAsSerial() {
+        int count = 200;
+        String mse = document(count);
+        Repository serial = new Repository(metamodel());
+        serial.importMSE(mse);
+        Map<String, Object> expected = byName(serial);
+        for (int chunkSize : new int[] { 1, 500, 1 << 20 }) {
+            Repository parallel = importInParallel(mse, chunkSize);
+            assertEquals(serial.size(), parallel.size());
+            Map<String, Object> elements = byName(parallel);
+            for (int n = 0; n < count; n++) {
+                Owner owner = (Owner) elements.get("o" + n);
+                assertSame(elements.get("o" + ((n + count / 2) % count)), owner.friend);
+                assertEquals(itemsOf((Owner) expected.get("o" + n)), itemsOf(owner));
+                assertEquals("[i" + ((n + count - 7) % count) + ", inner" + n + "]", itemsOf(owner));
+                assertEquals(0.5, ((Item) elements.get("inner" + n)).weight, 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testSharedExecutor() {
+        String mse = document(50);
+        ParallelImporter importer = new ParallelImporter(metamodel());
+        importer.setExecutor(null, 2);
+        importer.setChunkSize(1);
+        importer.readFrom(InputSource.fromString(mse));
+        Map<String, Object> elements = byName(importer.getResult());
+        assertEquals(150, importer.getResult().size());
+        assertEquals("[i43, inner0]", itemsOf((Owner) elements.get("o0")));
+    }
+
+    @Test
+    public void testImportFileInParallel() throws Exception {
+        File file = File.createTempFile("parallel", ".mse");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            FileOutputStream output = new FileOutputStream(file);
+            output.write(document(50).getBytes("UTF-8"));
+            output.close();
+            Repository model = new Repository(metamodel());
+            model.importMSEFileInParallel(file.getPath(), executor, 2);
+            assertEquals(150, model.size());
+            assertEquals("[i43, inner0]", itemsOf((Owner) byName(model).get("o0")));
+        } finally {
+            executor.shutdown();
+            file.delete();
+        }
+    }
+
+    @Test(expected = AssertionError.class)
+    public void testDanglingReference() {
+        importInParallel("((Test.Owner (friend (ref: 3))) (Test.Owner (id: 1)) (Test.Owner (id: 2)))", 1);
+    }
+
+}
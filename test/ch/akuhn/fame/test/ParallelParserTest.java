@@ -0,0 +1,123 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.parser.DebugClient;
+import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.ParallelParser;
+import ch.akuhn.fame.parser.ParseError;
+import ch.akuhn.fame.parser.Parser;
+import ch.akuhn.fame.parser.Scanner;
+
+public class ParallelParserTest {
+
+    private static String document(int count) {
+        StringBuilder buf = new StringBuilder("(\n");
+        for (int n = 1; n <= count; n++) {
+            buf.append("\t(FAMIX.Class (id: ").append(n).append(")\n");
+            buf.append("\t\t(name 'C(").append(n).append(")''s\nname') \"a (comment)\n\"\n");
+            buf.append("\t\t(value ").append(n).append(".5 true (ref: ").append(n + 1).append("))\n");
+            buf.append("\t\t(inner (FAMIX.Method (name 'm') (type (ref: String)))))\n");
+        }
+        return buf.append(")").toString();
+    }
+
+    private static String parallel(InputSource in, int chunkSize) {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            ParallelParser parser = new ParallelParser(in);
+            parser.setExecutor(executor, 3);
+            parser.setChunkSize(chunkSize);
+            DebugClient client = new DebugClient();
+            parser.accept(client);
+            return client.toString();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String serial(InputSource in) {
+        DebugClient client = new DebugClient();
+        new Parser(new Scanner(in)).accept(client);
+        return client.toString();
+    }
+
+    @Test
+    public void testSameEventsAsSerial() {
+        String mse = document(50);
+        String expected = serial(InputSource.fromString(mse));
+        for (int chunkSize : new int[] { 1, 100, 1000, 1 << 20 }) {
+            assertEquals(expected, parallel(InputSource.fromString(mse), chunkSize));
+        }
+    }
+
+    @Test
+    public void testEmptyDocument() {
+        assertEquals(serial(InputSource.fromString("()")), parallel(InputSource.fromString("()"), 1));
+        assertEquals(serial(InputSource.fromString("")), parallel(InputSource.fromString(""), 1));
+    }
+
+    @Test
+    public void testErrorPosition() {
+        String mse = document(20).replace("(ref: 12)", "(ref: 'twelve')");
+        String expected = null;
+        try {
+            serial(InputSource.fromString(mse));
+            fail();
+        } catch (ParseError ex) {
+            expected = ex.getMessage();
+        }
+        try {
+            parallel(InputSource.fromString(mse), 1);
+            fail();
+        } catch (ParseError ex) {
+            assertEquals(expected, ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testUnclosedDocument() {
+        String mse = document(20);
+        mse = mse.substring(0, mse.length() - 1) + "\n'runaway";
+        String expected = null;
+        try {
+            serial(InputSource.fromString(mse));
+            fail();
+        } catch (ParseError ex) {
+            expected = ex.getMessage();
+        }
+        try {
+            parallel(InputSource.fromString(mse), 100);
+            fail();
+        } catch (ParseError ex) {
+            assertEquals(expected, ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testMappedSegments() throws IOException {
+        String mse = document(30);
+        File file = File.createTempFile("parallel", ".mse");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(mse);
+            writer.close();
+            String expected = serial(InputSource.fromString(mse));
+            assertEquals(expected, parallel(InputSource.fromFile(file, 64), 500));
+        } finally {
+            file.delete();
+        }
+    }
+
+}
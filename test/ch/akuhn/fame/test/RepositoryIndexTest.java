@@ -0,0 +1,126 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.FameDescription;
+import ch.akuhn.fame.FamePackage;
+import ch.akuhn.fame.FameProperty;
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.Repository;
+import ch.akuhn.fame.fm3.MetaDescription;
+
+@FamePackage("Test")
+public class RepositoryIndexTest {
+
+    @FameDescription("Shape")
+    static class Shape {
+        @FameProperty
+        public String name;
+    }
+
+    @FameDescription("Circle")
+    static class Circle extends Shape {
+    }
+
+    static class Ring extends Circle {
+    }
+
+    @FameDescription("Label")
+    static class Label {
+    }
+
+    static class Plain {
+    }
+
+    private static Repository model() {
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.with(Shape.class);
+        metamodel.with(Circle.class);
+        metamodel.with(Label.class);
+        return new Repository(metamodel);
+    }
+
+    @Test
+    public void testCountSubtypes() {
+        Repository model = model();
+        model.add(new Shape(), new Circle(), new Ring(), new Label());
+        assertEquals(3, model.count(Shape.class));
+        assertEquals(2, model.count(Circle.class));
+        assertEquals(1, model.count(Ring.class));
+        assertEquals(1, model.count(Label.class));
+        assertEquals(4, model.count(Object.class));
+    }
+
+    @Test
+    public void testLiveViews() {
+        Repository model = model();
+        Collection<Circle> circles = model.extent(Circle.class);
+        assertTrue(circles.isEmpty());
+        Circle circle = new Circle();
+        Ring ring = new Ring();
+        model.add(circle, new Shape(), ring, new Label());
+        assertEquals(2, circles.size());
+        assertTrue(circles.contains(circle));
+        assertTrue(circles.contains(ring));
+        assertFalse(circles.contains(new Circle()));
+        assertSame(circles, model.extent(Circle.class));
+        model.add(circle);
+        assertEquals(2, circles.size());
+    }
+
+    @Test
+    public void testQueryByDescription() {
+        Repository model = model();
+        model.add(new Shape(), new Circle(), new Ring(), new Label());
+        MetaDescription shape = model.getMetamodel().descriptionNamed("Test.Shape");
+        MetaDescription circle = model.getMetamodel().descriptionNamed("Test.Circle");
+        assertEquals(3, model.count(shape));
+        assertEquals(2, model.count(circle));
+        assertEquals(2, model.all(circle).size());
+        for (Object each : model.all(circle))
+            assertTrue(each instanceof Circle);
+    }
+
+    @Test
+    public void testAllAnswersSnapshot() {
+        Repository model = model();
+        model.add(new Circle(), new Circle());
+        Collection<Circle> circles = model.all(Circle.class);
+        for (Circle each : circles)
+            model.add(new Ring());
+        assertEquals(2, circles.size());
+        circles.clear();
+        assertEquals(4, model.count(Circle.class));
+    }
+
+    @Test
+    public void testRemoveFromElements() {
+        Repository model = model();
+        Circle circle = new Circle();
+        model.add(circle, new Shape(), new Label());
+        assertTrue(model.getElements().remove(circle));
+        assertEquals(1, model.count(Shape.class));
+        assertFalse(model.extent(Circle.class).contains(circle));
+        model.getElements().clear();
+        assertEquals(0, model.count(Object.class));
+        assertTrue(model.isEmpty());
+    }
+
+    @Test
+    public void testUndescribedClass() {
+        Repository model = model();
+        model.registerAll(Arrays.asList(new Circle(), new Plain()));
+        MetaDescription shape = model.getMetamodel().descriptionNamed("Test.Shape");
+        assertEquals(1, model.count(shape));
+        assertEquals(2, model.count(Object.class));
+    }
+
+}
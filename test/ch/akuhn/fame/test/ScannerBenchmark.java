@@ -0,0 +1,63 @@
+package ch.akuhn.fame.test;
+
+import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.Scanner;
+import ch.akuhn.fame.parser.TokenType;
+
+/**
+ * Compares the scanner, which skips strings and comments eight bytes at a
+ * time, against a scalar loop that visits every byte, on a document with long
+ * source anchors and comments. Run with <tt>java -ea:none</tt>.
+ * 
+ */
+public class ScannerBenchmark {
+
+    private static byte[] document(int count) throws Exception {
+        StringBuilder buf = new StringBuilder("(\n");
+        for (int n = 1; n <= count; n++) {
+            buf.append("\t(FAMIX.Method (id: ").append(n).append(")\n");
+            buf.append("\t\t\"generated from src/org/example/project/module/Component").append(n);
+            buf.append(".java, do not edit by hand\"\n");
+            buf.append("\t\t(name 'method").append(n).append("')\n");
+            buf.append("\t\t(sourceAnchor 'src/org/example/project/module/Component").append(n);
+            buf.append(".java#L120-L180, containing class org.example.project.module.Component')\n");
+            buf.append("\t\t(numberOfLinesOfCode ").append(n % 97).append("))\n");
+        }
+        return buf.append(")").toString().getBytes("UTF-8");
+    }
+
+    public static void main(String... args) throws Exception {
+        byte[] bytes = document(200000);
+        for (int round = 0; round < 5; round++) {
+            long time = System.nanoTime();
+            int tokens = scan(bytes);
+            long scanner = System.nanoTime() - time;
+            time = System.nanoTime();
+            int quotes = scalar(bytes);
+            long scalar = System.nanoTime() - time;
+            System.out.printf("%d tokens, %d quotes; scanner %.0f MB/s, scalar loop %.0f MB/s%n", tokens, quotes,
+                    bytes.length * 1e3 / scanner, bytes.length * 1e3 / scalar);
+        }
+    }
+
+    /** Tokenizes the input without materializing values. */
+    private static int scan(byte[] bytes) {
+        Scanner scanner = new Scanner(InputSource.fromBytes(bytes));
+        int count = 0;
+        while (scanner.advance() != TokenType.EOF)
+            count++;
+        return count;
+    }
+
+    /** Visits every byte, as the scanner did before, and only counts quotes. */
+    private static int scalar(byte[] bytes) {
+        InputSource in = InputSource.fromBytes(bytes);
+        int count = 0;
+        for (char ch = in.peek(); ch != InputSource.EOF; in.inc(), ch = in.peek()) {
+            if (ch == '\'' || ch == '\"')
+                count++;
+        }
+        return count;
+    }
+
+}
@@ -24,14 +24,25 @@ import static ch.akuhn.fame.parser.TokenType.BOOLEAN;
 import static ch.akuhn.fame.parser.TokenType.CLOSE;
 import static ch.akuhn.fame.parser.TokenType.EOF;
 import static ch.akuhn.fame.parser.TokenType.NAME;
+import static ch.akuhn.fame.parser.TokenType.NUMBER;
 import static ch.akuhn.fame.parser.TokenType.OPEN;
 import static ch.akuhn.fame.parser.TokenType.STRING;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.Random;
 
 import org.junit.Test;
 
+import ch.akuhn.fame.parser.InputSource;
 import ch.akuhn.fame.parser.ParseError;
 import ch.akuhn.fame.parser.Scanner;
+import ch.akuhn.fame.parser.SymbolTable;
 import ch.akuhn.fame.parser.Token;
 
 public class ScannerTest {
@@ -45,6 +56,27 @@ public class ScannerTest {
         token = scan.nextOrEOF();
     }
 
+    @Test
+    public void testCursor() {
+        scan = new Scanner("(Name 'it''s' 42 1.5 true)");
+        assertEquals(OPEN, scan.advance());
+        assertEquals(NAME, scan.advance());
+        assertEquals(1, scan.tokenStart());
+        assertEquals(5, scan.tokenEnd());
+        assertEquals("Name", scan.stringValue());
+        assertSame(scan.getSymbols().nameOf(scan.symbol()), scan.stringValue());
+        assertEquals(STRING, scan.advance());
+        assertEquals("it's", scan.stringValue());
+        assertEquals(NUMBER, scan.advance());
+        assertEquals(42, scan.intValue());
+        assertEquals(NUMBER, scan.advance());
+        assertEquals(1.5, scan.doubleValue(), 0.0);
+        assertEquals(BOOLEAN, scan.advance());
+        assertEquals(true, scan.booleanValue());
+        assertEquals(CLOSE, scan.advance());
+        assertEquals(EOF, scan.advance());
+    }
+
     @Test
     public void testDottedName() {
         scan = new Scanner("Dot.Dot.Name");
@@ -177,6 +209,42 @@ public class ScannerTest {
         assertEquals(EOF, scan.nextOrEOF().type);
     }
 
+    @Test
+    public void testStringWithNonAscii() {
+        scan = new Scanner("('Z\u00FCrich ''\u20AC''')");
+        assertEquals(OPEN, scan.nextOrEOF().type);
+        token = scan.nextOrEOF();
+        assertEquals(STRING, token.type);
+        assertEquals("Z\u00FCrich '\u20AC'", token.value);
+        assertEquals(CLOSE, scan.nextOrEOF().type);
+        assertEquals(EOF, scan.nextOrEOF().type);
+    }
+
+    @Test
+    public void testStringFromBytes() {
+        scan = new Scanner(InputSource.fromBytes("('Z\u00FCrich')".getBytes(Charset.forName("ISO-8859-1"))));
+        assertEquals(OPEN, scan.nextOrEOF().type);
+        assertEquals("Z\u00FCrich", scan.nextOrEOF().value);
+    }
+
+    @Test
+    public void testSymbols() {
+        SymbolTable symbols = new SymbolTable();
+        int known = symbols.intern("FAMIX.Class");
+        scan = new Scanner(InputSource.fromString("FAMIX.Class name FAMIX.Class name"), symbols);
+        assertEquals(NAME, scan.advance());
+        assertEquals(known, scan.symbol());
+        assertEquals(NAME, scan.advance());
+        int name = scan.symbol();
+        assertEquals(NAME, scan.advance());
+        assertEquals(known, scan.symbol());
+        assertEquals(NAME, scan.advance());
+        assertEquals(name, scan.symbol());
+        assertSame(symbols.nameOf(name), scan.stringValue());
+        assertEquals(name, symbols.idOf("name"));
+        assertEquals(-1, symbols.idOf("unknown"));
+    }
+
     @Test
     public void testTrailingWhitespace() {
         scan = new Scanner("(   ");
@@ -187,6 +255,81 @@ public class ScannerTest {
         assertEquals(EOF, scan.nextOrEOF().type);
     }
 
+    @Test
+    public void testLargeIntegers() {
+        scan = new Scanner("2147483647 2147483648 -9223372036854775808 123456789012345678901234");
+        assertEquals(Integer.valueOf(Integer.MAX_VALUE), scan.nextOrEOF().value);
+        assertEquals(Long.valueOf(2147483648L), scan.nextOrEOF().value);
+        assertEquals(Long.valueOf(Long.MIN_VALUE), scan.nextOrEOF().value);
+        assertEquals(new BigInteger("123456789012345678901234"), scan.nextOrEOF().value);
+        assertEquals(EOF, scan.nextOrEOF().type);
+    }
+
+    @Test
+    public void testDecimals() {
+        scan = new Scanner("0.1 12.5e3 -7.25 1e400 1e-400 -0.0 0.30000000000000004 123456789012345678.9e-3");
+        assertEquals(0.1, scan.nextOrEOF().value);
+        assertEquals(12500.0, scan.nextOrEOF().value);
+        assertEquals(-7.25, scan.nextOrEOF().value);
+        assertEquals(Double.POSITIVE_INFINITY, scan.nextOrEOF().value);
+        assertEquals(0.0, scan.nextOrEOF().value);
+        assertEquals(-0.0, scan.nextOrEOF().value);
+        assertEquals(0.30000000000000004, scan.nextOrEOF().value);
+        assertEquals(NUMBER, scan.advance());
+        assertEquals(123456789012345.6789, scan.doubleValue(), 0.0);
+        assertEquals(new BigDecimal("123456789012345678.9e-3"), scan.decimalValue());
+    }
+
+    @Test
+    public void testDecimalsSameAsParseDouble() {
+        Random random = new Random(42);
+        for (int n = 0; n < 10000; n++) {
+            String literal = Long.toString(random.nextLong() >>> 1 + random.nextInt(63));
+            if (literal.length() > 1)
+                literal = literal.substring(0, 1) + "." + literal.substring(1);
+            literal += "e" + (random.nextInt(80) - 40);
+            scan = new Scanner(literal);
+            assertEquals(NUMBER, scan.advance());
+            assertEquals(literal, Double.parseDouble(literal), scan.doubleValue(), 0.0);
+        }
+    }
+
+    @Test
+    public void testLongStringsAndComments() {
+        for (int length = 0; length < 40; length++) {
+            for (int special = 0; special <= length; special++) {
+                StringBuilder buf = new StringBuilder();
+                for (int n = 0; n < length; n++)
+                    buf.append(n == special ? "\u00e9" : "abcdefgh".charAt(n % 8));
+                String value = buf.toString();
+                scan = new Scanner("\"" + value + "\" '" + value.replace("a", "''") + "' ()");
+                assertEquals(STRING, scan.advance());
+                assertEquals(value.replace("a", "'"), scan.stringValue());
+                assertEquals(OPEN, scan.advance());
+            }
+        }
+    }
+
+    @Test
+    public void testLongCommentInStream() {
+        StringBuilder buf = new StringBuilder();
+        for (int n = 0; n < 1 << 20; n++)
+            buf.append(n % 80 == 0 ? '\n' : 'x');
+        String comment = "(\n \"" + buf;
+        scan = new Scanner(InputSource.fromInputStream(new ByteArrayInputStream((comment + "\" (A))").getBytes())));
+        assertEquals(OPEN, scan.advance());
+        assertEquals(OPEN, scan.advance());
+        assertEquals(NAME, scan.advance());
+        scan = new Scanner(InputSource.fromInputStream(new ByteArrayInputStream(comment.getBytes())));
+        assertEquals(OPEN, scan.advance());
+        try {
+            scan.advance();
+            fail();
+        } catch (ParseError ex) {
+            assertEquals("Runaway comment  at 2:2", ex.getMessage());
+        }
+    }
+
     @Test
     public void testTrue() {
         scan = new Scanner("true");
@@ -0,0 +1,171 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.FameDescription;
+import ch.akuhn.fame.FamePackage;
+import ch.akuhn.fame.FameProperty;
+import ch.akuhn.fame.MetaRepository;
+import ch.akuhn.fame.internal.MultivalueSet;
+import ch.akuhn.fame.parser.ImportSink;
+import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.StreamingImporter;
+
+@FamePackage("Test")
+public class StreamingImporterTest {
+
+    @FameDescription("Node")
+    static class Node {
+        @FameProperty
+        public String name;
+        @FameProperty
+        public Node next;
+        @FameProperty
+        public Collection<Node> children = new ArrayList<Node>();
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    @FameDescription("Folder")
+    static class Folder {
+        @FameProperty
+        public String name;
+        private Collection<File> files = new MultivalueSet<File>() {
+            @Override
+            protected void clearOpposite(File e) {
+                e.folder = null;
+            }
+
+            @Override
+            protected void setOpposite(File e) {
+                e.folder = Folder.this;
+            }
+        };
+
+        @FameProperty(opposite = "folder")
+        public Collection<File> getFiles() {
+            return files;
+        }
+
+        public void setFiles(Collection<? extends File> files) {
+            this.files.clear();
+            this.files.addAll(files);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    @FameDescription("File")
+    static class File {
+        @FameProperty
+        public String name;
+        private Folder folder;
+
+        @FameProperty(opposite = "files")
+        public Folder getFolder() {
+            return folder;
+        }
+
+        public void setFolder(Folder folder) {
+            if (this.folder == folder)
+                return;
+            if (this.folder != null)
+                this.folder.getFiles().remove(this);
+            this.folder = folder;
+            if (folder != null)
+                folder.getFiles().add(this);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final String MSE = "((Test.Node (id: 1) (name 'a') (next (ref: 3)))\n"
+            + "(Test.Node (id: 2) (name 'b') (next (ref: 1)) (children (Test.Node (name 'c')) (ref: 4)))\n"
+            + "(Test.Node (id: 3) (name 'd') (children (Test.Node (id: 4) (name 'e') (next (ref: 2))))))";
+
+    private static MetaRepository metamodel() {
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.with(Node.class);
+        return metamodel;
+    }
+
+    private static List<Node> stream(InputSource in) {
+        final List<Node> nodes = new ArrayList<Node>();
+        new StreamingImporter(metamodel(), new ImportSink() {
+            public void accept(Object element) {
+                Node node = (Node) element;
+                if (!node.name.equals("c") && !node.name.equals("d"))
+                    assertNotNull(node.next);
+                nodes.add(node);
+            }
+        }).readFrom(in);
+        return nodes;
+    }
+
+    @Test
+    public void testCompleteElements() {
+        List<Node> nodes = stream(InputSource.fromString(MSE));
+        assertEquals("[c, a, b, e, d]", nodes.toString());
+        assertSame(nodes.get(4), nodes.get(1).next);
+        assertSame(nodes.get(3), nodes.get(2).children.toArray()[1]);
+        assertSame(nodes.get(2), nodes.get(3).next);
+    }
+
+    @Test
+    public void testUncountedStream() throws Exception {
+        List<Node> nodes = stream(InputSource.fromInputStream(new ByteArrayInputStream(MSE.getBytes("UTF-8"))));
+        assertEquals("[c, a, b, e, d]", nodes.toString());
+    }
+
+    @Test
+    public void testElementsWithBoundedQueue() {
+        StreamingImporter.Elements elements = StreamingImporter.elements(metamodel(), InputSource.fromString(MSE), 1);
+        List<Object> nodes = new ArrayList<Object>();
+        while (elements.hasNext())
+            nodes.add(elements.next());
+        assertEquals("[c, a, b, e, d]", nodes.toString());
+    }
+
+    @Test
+    public void testNoUpdateAfterDelivery() {
+        MetaRepository metamodel = new MetaRepository();
+        metamodel.withAll(Folder.class, File.class);
+        final List<String> delivered = new ArrayList<String>();
+        new StreamingImporter(metamodel, new ImportSink() {
+            public void accept(Object element) {
+                if (element instanceof File)
+                    assertNotNull(((File) element).folder);
+                else
+                    assertEquals(3, ((Folder) element).files.size());
+                delivered.add(element.toString());
+            }
+        }).readFrom(InputSource.fromString("((Test.Folder (id: 1) (name 'root')"
+                + " (files (Test.File (name 'a')) (ref: 3)))" + "(Test.File (id: 3) (name 'b'))"
+                + "(Test.File (id: 4) (name 'c') (folder (ref: 1))))"));
+        assertEquals("[a, b, root, c]", delivered.toString());
+    }
+
+    @Test(expected = AssertionError.class)
+    public void testDanglingReference() {
+        stream(InputSource.fromString("((Test.Node (id: 1) (name 'a') (next (ref: 3))))"));
+    }
+
+}
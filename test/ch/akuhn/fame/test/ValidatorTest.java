@@ -0,0 +1,64 @@
+package ch.akuhn.fame.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.akuhn.fame.parser.InputSource;
+import ch.akuhn.fame.parser.ParseError;
+import ch.akuhn.fame.parser.Validator;
+
+public class ValidatorTest {
+
+    private static List<ParseError> validate(String mse) {
+        return new Validator(InputSource.fromString(mse)).validate();
+    }
+
+    @Test
+    public void testWellFormed() {
+        assertEquals(0, validate("((A (id: 1) (x (ref: 2) (ref: Object))) (B (id: 2) (y (ref: 1))))").size());
+        assertEquals(0, new Validator(InputSource.fromResource("ch/unibe/fame/resources/FAMIX22.fm3.mse"))
+                .validate().size());
+        assertEquals(0, validate("").size());
+    }
+
+    @Test
+    public void testReferentialIntegrity() {
+        List<ParseError> errors = validate("((A (id: 1) (x (ref: 3)))\n(B (id: 1) (y (ref: 1) (ref: 4))))");
+        assertEquals(3, errors.size());
+        assertEquals("Unresolved reference to 3 at 1:16", errors.get(0).getMessage());
+        assertEquals("Duplicate serial 1 at 2:4", errors.get(1).getMessage());
+        assertEquals("Unresolved reference to 4 at 2:24", errors.get(2).getMessage());
+    }
+
+    @Test
+    public void testSyntaxErrorStops() {
+        List<ParseError> errors = validate("((A (id: 1) (x (ref: 3))) (A (id: 1)) (B (y 'a' b)))");
+        assertEquals(2, errors.size());
+        assertEquals("Duplicate serial 1 at 1:30", errors.get(0).getMessage());
+        assertEquals("Expected STRING, found NAME at 1:49", errors.get(1).getMessage());
+    }
+
+    @Test
+    public void testLargeSerials() {
+        List<ParseError> errors = validate("((A (id: 2147483647) (x (ref: 2147483646)))\n"
+                + "(B (id: 2147483646) (y (ref: 2147483647) (ref: 2000000000) (ref: 2000000000))))");
+        assertEquals(2, errors.size());
+        assertEquals("Unresolved reference to 2000000000 at 2:42", errors.get(0).getMessage());
+        assertEquals("Unresolved reference to 2000000000 at 2:60", errors.get(1).getMessage());
+    }
+
+    @Test
+    public void testSerialOutOfRange() {
+        List<ParseError> errors = validate("((A (id: 1)) (B (id: 4294967297)))");
+        assertEquals(1, errors.size());
+        assertEquals("Serial out of range at 1:22", errors.get(0).getMessage());
+        errors = validate("((A (id: 1) (x (ref: 2147483648))))");
+        assertEquals("Serial out of range at 1:22", errors.get(0).getMessage());
+        errors = validate("((A (id: 1.5)))");
+        assertEquals("Serial out of range at 1:10", errors.get(0).getMessage());
+    }
+
+}